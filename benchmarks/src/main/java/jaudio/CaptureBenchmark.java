@@ -0,0 +1,106 @@
+package jaudio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * The chunk copy loops of Recorder and Player, from an in-memory signal instead of a line.
+ */
+@State(Scope.Thread)
+public class CaptureBenchmark extends PcmBenchmark {
+
+    File captureFile;
+    StreamMetrics metrics;
+
+    @Override
+    void prepare() throws Exception {
+        captureFile = File.createTempFile("jaudio-capture", ".wav");
+        metrics = new StreamMetrics();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTargets() {
+        captureFile.delete();
+    }
+
+    /**
+     * The baseline capture into a ByteArrayOutputStream, copied out at the end.
+     */
+    @Benchmark
+    public long recorderCopyMemory() {
+        ByteArrayInputStream in = new ByteArrayInputStream(pcm);
+        ByteArrayOutputStream capture = new ByteArrayOutputStream();
+        int numBytesRead;
+        while ((numBytesRead = in.read(chunk, 0, chunk.length)) > 0) {
+            capture.write(chunk, 0, numBytesRead);
+        }
+        byte[] audioBytes = capture.toByteArray();
+        return new AudioInputStream(new ByteArrayInputStream(audioBytes), format, audioBytes.length / format.getFrameSize()).getFrameLength();
+    }
+
+    /**
+     * Back to back takes into pooled segments, each released before the next.
+     */
+    @Benchmark
+    public long recorderCopyStore() throws Exception {
+        AudioStore store = new AudioStore(format);
+        for (int p = 0; p < pcm.length; p += chunk.length) {
+            store.write(pcm, p, Math.min(chunk.length, pcm.length - p));
+        }
+        long frames;
+        try (AudioInputStream view = store.getAudioInputStream()) {
+            frames = view.getFrameLength();
+        }
+        store.release();
+        return frames;
+    }
+
+    /**
+     * The per chunk bookkeeping of the capture metrics.
+     */
+    @Benchmark
+    public long recorderCopyMetrics() {
+        ByteArrayInputStream in = new ByteArrayInputStream(pcm);
+        int numBytesRead;
+        while (true) {
+            metrics.bufferFill(in.available());
+            long start = System.nanoTime();
+            if ((numBytesRead = in.read(chunk, 0, chunk.length)) <= 0) {
+                break;
+            }
+            long end = System.nanoTime();
+            metrics.chunk(numBytesRead, end - start);
+            metrics.conversion(System.nanoTime() - end);
+        }
+        return metrics.getChunks();
+    }
+
+    @Benchmark
+    public long recorderCopyFile() throws Exception {
+        try (WaveFileWriter writer = new WaveFileWriter(captureFile, format)) {
+            for (int p = 0; p < pcm.length; p += chunk.length) {
+                writer.write(pcm, p, Math.min(chunk.length, pcm.length - p));
+            }
+            return writer.getDataBytes();
+        }
+    }
+
+    @Benchmark
+    public void playerCopy(Blackhole bh) throws Exception {
+        AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(pcm), format, frames);
+        int numBytesRead;
+        while ((numBytesRead = stream.read(chunk)) != -1) {
+            bh.consume(numBytesRead);
+        }
+        bh.consume(chunk);
+    }
+}
@@ -0,0 +1,78 @@
+package jaudio;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding PCM to floats, the way WaveData, the decoder and the level meters do it. The meters also report
+ * levelMeterUpdate:coreSharePercent, the share of one core they take at the format's real-time data rate.
+ */
+@State(Scope.Thread)
+public class DecodeBenchmark extends PcmBenchmark {
+
+    WaveData waveData;
+    PcmDecoder decoder;
+    float[] dst;
+    LevelMeter meter;
+    LevelMeter.Levels levels;
+
+    @Override
+    void prepare() {
+        waveData = new WaveData();
+        decoder = new PcmDecoder(format, true);
+        dst = new float[frames * channels];
+        meter = new LevelMeter(format);
+        levels = new LevelMeter.Levels(channels);
+    }
+
+    @Benchmark
+    public float[] extractFloatData() {
+        return waveData.extractFloatDataFromAmplitudeByteArray(format, pcm);
+    }
+
+    @Benchmark
+    public void pcmDecoderDecode(Blackhole bh) {
+        bh.consume(decoder.decode(pcm, 0, pcm.length, dst, 0));
+        bh.consume(dst);
+    }
+
+    /**
+     * Time spent metering over the duration of the audio metered, per iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CoreShare extends MeanCounters {
+        public double coreSharePercent;
+        long nanos;
+        long frames;
+
+        @Override
+        void reset() {
+            coreSharePercent = 0;
+            nanos = 0;
+            frames = 0;
+        }
+
+        void add(long nanos, int frames) {
+            this.nanos += nanos;
+            this.frames += frames;
+            coreSharePercent = mean(100 * (this.nanos / 1e9) / (this.frames / RATE));
+        }
+    }
+
+    /**
+     * Meters the signal chunk by chunk, as the capture loop does.
+     */
+    @Benchmark
+    public void levelMeterUpdate(Blackhole bh, CoreShare share) {
+        long start = System.nanoTime();
+        for (int p = 0; p < pcm.length; p += chunk.length) {
+            meter.update(pcm, p, Math.min(chunk.length, pcm.length - p));
+        }
+        bh.consume(meter.read(levels));
+        share.add(System.nanoTime() - start, frames);
+    }
+}
@@ -0,0 +1,37 @@
+package jaudio;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+
+/**
+ * Base of the secondary figures that are not rates, such as a compression ratio, reported as
+ * {@link org.openjdk.jmh.annotations.AuxCounters.Type#EVENTS EVENTS} counters.
+ * <p>
+ * JMH sums EVENTS counters over the measurement iterations, so each iteration reports its value scaled by
+ * {@link #mean} to a share of their count, and the sum is the mean. Warmup iterations report nothing.
+ */
+public abstract class MeanCounters {
+
+    private double weight;
+
+    @Setup(Level.Iteration)
+    public void startIteration(IterationParams params) {
+        weight = params.getType() == IterationType.MEASUREMENT ? 1.0 / params.getCount() : 0;
+        reset();
+    }
+
+    /**
+     * Clears what the counters accumulate over an iteration.
+     */
+    void reset() {
+    }
+
+    /**
+     * @return this iteration's share of the mean of value over the measurement iterations
+     */
+    double mean(double value) {
+        return value * weight;
+    }
+}
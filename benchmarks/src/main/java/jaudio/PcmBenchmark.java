@@ -0,0 +1,98 @@
+package jaudio;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synthetic PCM for the benchmarks, at every size, sample width and channel count they run over.
+ * <p>
+ * Scores are operations per second over the whole signal, so MB/s is the score times frames times the
+ * frame size. Run the allocation profiler for bytes per operation; no sound hardware is needed:
+ *
+ * <pre>
+ * mvn package && java -jar benchmarks/target/benchmarks.jar -prof gc [regexp] [-p frames=65536 -p bits=16]
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class PcmBenchmark {
+
+    static final float RATE = 44100f;
+    static final int CHUNK_FRAMES = 2048;
+
+    @Param({"65536", "1048576"})
+    public int frames;
+
+    @Param({"8", "16", "24"})
+    public int bits;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    AudioFormat format;
+    byte[] pcm;
+    byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void createSignal() throws Exception {
+        format = format(bits, channels);
+        pcm = signal(format, frames);
+        chunk = new byte[CHUNK_FRAMES * format.getFrameSize()];
+        prepare();
+    }
+
+    /**
+     * Sets up what a benchmark needs besides the signal. JMH does not order setups along the class hierarchy,
+     * so subclasses override this instead of declaring their own.
+     */
+    void prepare() throws Exception {
+    }
+
+    /**
+     * A deterministic mix of two tones and noise at about -6 dBFS.
+     */
+    static byte[] signal(AudioFormat format, int frames) {
+        int channels = format.getChannels();
+        int bytes = format.getSampleSizeInBits() / 8;
+        byte[] data = new byte[frames * format.getFrameSize()];
+        Random random = new Random(42);
+        long full = (1L << (format.getSampleSizeInBits() - 1)) - 1;
+        int p = 0;
+        for (int f = 0; f < frames; f++) {
+            double t = f / (double) format.getFrameRate();
+            for (int c = 0; c < channels; c++) {
+                double s = 0.3 * Math.sin(2 * Math.PI * 440 * t + c) + 0.15 * Math.sin(2 * Math.PI * 3150 * t) + 0.05 * random.nextGaussian();
+                long v = Math.round(s * full);
+                if (bytes == 1) {
+                    v += 128; // 8 bit WAV data is unsigned
+                }
+                for (int b = 0; b < bytes; b++) {
+                    data[p++] = (byte) (v >> (8 * b));
+                }
+            }
+        }
+        return data;
+    }
+
+    static AudioFormat format(int bits, int channels) {
+        AudioFormat.Encoding encoding = bits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+        return new AudioFormat(encoding, RATE, bits, channels, bits / 8 * channels, RATE, false);
+    }
+}
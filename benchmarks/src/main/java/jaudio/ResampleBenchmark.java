@@ -0,0 +1,77 @@
+package jaudio;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resampling decoded 44.1 kHz audio, on one core. Millions of input samples per second are reported as
+ * resample:msps; the sample width does not matter once decoded, so it is fixed at 16 bits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResampleBenchmark {
+
+    @Param({"65536", "1048576"})
+    public int frames;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"48000", "22050", "16000"})
+    public float rate;
+
+    Resampler resampler;
+    float[] samples;
+    float[] resampled;
+
+    @Setup(Level.Trial)
+    public void createResampler() {
+        AudioFormat format = PcmBenchmark.format(16, channels);
+        byte[] pcm = PcmBenchmark.signal(format, frames);
+        samples = new float[frames * channels];
+        new PcmDecoder(format, true).decode(pcm, 0, pcm.length, samples, 0);
+        resampler = new Resampler(PcmBenchmark.RATE, rate, channels);
+        resampled = new float[resampler.getOutputCapacity(frames) * channels];
+    }
+
+    /**
+     * Input samples in millions, per second once JMH divides by the iteration time.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Samples {
+        public double msps;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            msps = 0;
+        }
+    }
+
+    @Benchmark
+    public void resample(Blackhole bh, Samples input) {
+        input.msps += frames * channels / 1e6;
+        resampler.reset();
+        bh.consume(resampler.process(samples, 0, frames, resampled, 0));
+        bh.consume(resampled);
+    }
+}
@@ -0,0 +1,96 @@
+package jaudio;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+
+/**
+ * Saving through WaveData and the lossless codec on its own. Files go to a temporary directory.
+ * Block encoding runs on the common pool, so the allocation profiler sees more than the calling thread.
+ * The encoder also reports the compressed size over the PCM size as losslessEncode:ratio.
+ */
+@State(Scope.Thread)
+public class SaveBenchmark extends PcmBenchmark {
+
+    File tmpDir;
+    byte[] jla;
+    PrintStream out;
+
+    @Override
+    void prepare() throws Exception {
+        tmpDir = Files.createTempDirectory("jaudio-bench").toFile();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        LosslessCodec.encode(stream(), compressed);
+        jla = compressed.toByteArray();
+        // saveToFile reports every save on stdout
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        System.setOut(out);
+        File[] files = tmpDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        tmpDir.delete();
+    }
+
+    private AudioInputStream stream() {
+        return new AudioInputStream(new ByteArrayInputStream(pcm), format, frames);
+    }
+
+    @Benchmark
+    public void saveToFile() throws Exception {
+        new WaveData().saveToFile(new File(tmpDir, "save").getPath(), AudioFileFormat.Type.WAVE, stream());
+        new File(tmpDir, "save.wav").delete();
+    }
+
+    @Benchmark
+    public void saveToFileJla() throws Exception {
+        new WaveData().saveToFile(new File(tmpDir, "save").getPath(), LosslessCodec.JLA, stream());
+        new File(tmpDir, "save.jla").delete();
+    }
+
+    /**
+     * Compressed size over PCM size.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Compression extends MeanCounters {
+        public double ratio;
+    }
+
+    @Benchmark
+    public long losslessEncode(Compression compression) throws Exception {
+        long bytes = LosslessCodec.encode(stream(), new ByteArrayOutputStream(jla.length));
+        compression.ratio = compression.mean(bytes / (double) pcm.length);
+        return bytes;
+    }
+
+    @Benchmark
+    public void losslessDecode(Blackhole bh) throws Exception {
+        AudioInputStream stream = LosslessCodec.getAudioInputStream(new ByteArrayInputStream(jla));
+        int numBytesRead;
+        while ((numBytesRead = stream.read(chunk)) != -1) {
+            bh.consume(numBytesRead);
+        }
+        bh.consume(chunk);
+    }
+}
@@ -0,0 +1,44 @@
+package jaudio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building the peak pyramid and rendering an 800 pixel wide waveform from it.
+ */
+@State(Scope.Thread)
+public class WaveformBenchmark extends PcmBenchmark {
+
+    static final int WIDTH = 800;
+
+    PeakPyramid peaks;
+    float[] min;
+    float[] max;
+
+    @Override
+    void prepare() {
+        peaks = PeakPyramid.build(format, pcm);
+        min = new float[WIDTH];
+        max = new float[WIDTH];
+    }
+
+    /**
+     * What SamplingGraph.createWaveForm does for a take in memory.
+     */
+    @Benchmark
+    public void createWaveForm(Blackhole bh) {
+        PeakPyramid built = PeakPyramid.build(format, pcm);
+        bh.consume(built.render(0, built.getFrameLength(), WIDTH, min, max, null));
+        bh.consume(min);
+        bh.consume(max);
+    }
+
+    @Benchmark
+    public void peakPyramidRender(Blackhole bh) {
+        bh.consume(peaks.render(0, peaks.getFrameLength(), WIDTH, min, max, null));
+        bh.consume(min);
+        bh.consume(max);
+    }
+}
@@ -0,0 +1,49 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+
+/**
+ * What {@link Recorder} and {@link Player} need of a line, so they run just as well on files, generated signals or
+ * sinks that only count.
+ * <p>
+ * Endpoints are created open. Sizes are in bytes, positions in frames, as on a DataLine.
+ */
+public interface AudioEndpoint extends Closeable {
+
+    /**
+     * Told when an endpoint starts or stops moving frames, with its frame position at that moment or
+     * AudioSystem.NOT_SPECIFIED if unknown.
+     */
+    interface StateListener {
+        void stateChanged(boolean running, long framePosition);
+    }
+
+    AudioFormat getFormat();
+
+    int getBufferSize();
+
+    /**
+     * @return bytes that can be read (source) or written (sink) without blocking
+     */
+    int available();
+
+    /**
+     * @return frames captured (source) or played (sink) since opened
+     */
+    long getLongFramePosition();
+
+    void start();
+
+    void stop();
+
+    boolean isRunning();
+
+    boolean isOpen();
+
+    void addStateListener(StateListener listener);
+
+    void removeStateListener(StateListener listener);
+
+    void close();
+}
@@ -0,0 +1,24 @@
+package jaudio;
+
+/**
+ * A playback endpoint: a SourceDataLine or a stand-in.
+ */
+public interface AudioSink extends AudioEndpoint {
+
+    /**
+     * Writes whole frames, blocking until all were queued unless the sink is stopped, flushed or closed first.
+     *
+     * @return the number of bytes written
+     */
+    int write(byte[] b, int offset, int length);
+
+    /**
+     * Drops queued frames that were not played yet.
+     */
+    void flush();
+
+    /**
+     * Blocks until the queued frames have been played.
+     */
+    void drain();
+}
@@ -0,0 +1,19 @@
+package jaudio;
+
+/**
+ * A capture endpoint: a TargetDataLine, a file or a generator.
+ */
+public interface AudioSource extends AudioEndpoint {
+
+    /**
+     * @return the length of a finite source in frames, or AudioSystem.NOT_SPECIFIED
+     */
+    long getFrameLength();
+
+    /**
+     * Reads whole frames, blocking until length bytes were read unless the source is stopped or closed first.
+     *
+     * @return the number of bytes read, or -1 at the end of a finite source
+     */
+    int read(byte[] b, int offset, int length);
+}
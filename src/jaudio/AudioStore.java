@@ -0,0 +1,296 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Audio kept in memory as a list of fixed size segments taken from a {@link SegmentPool}.
+ * <p>
+ * Appending fills the last segment and takes a new one when it is full, so a take is never copied while it grows
+ * and whole frames never straddle two segments. Readers use random access {@link #read}, an
+ * {@link #getAudioInputStream(long, long) AudioInputStream view} of any frame range, or the segments themselves.
+ * The store is reference counted: the creator holds the first reference, every other long lived user such as a
+ * playback cache, a running save or an open view {@link #retain()}s its own, and the segments go back to the pool
+ * with the last {@link #release()}. One thread appends; reads of the frames already appended are safe from any thread.
+ */
+public class AudioStore {
+
+    private static final byte[][] NONE = new byte[0][];
+    private static final long[] NO_REGIONS = new long[0];
+
+    private final AudioFormat format;
+    private final int frameSize;
+    private final SegmentPool pool;
+    private final int segmentBytes;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile byte[][] segments = NONE;
+    private volatile long length;
+    private volatile boolean released;
+    private volatile long[] regions = NO_REGIONS;
+    private int count;
+
+    public AudioStore(AudioFormat format, SegmentPool pool) {
+        this.format = format;
+        this.frameSize = format.getFrameSize();
+        this.pool = pool;
+        this.segmentBytes = Math.max(1, pool.getSegmentBytes() / frameSize) * frameSize;
+        if (segmentBytes > pool.getSegmentBytes()) {
+            throw new IllegalArgumentException("Frames of " + frameSize + " bytes do not fit segments of " + pool.getSegmentBytes());
+        }
+    }
+
+    public AudioStore(AudioFormat format) {
+        this(format, SegmentPool.getShared());
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return bytes appended so far
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public long getFrameLength() {
+        return length / frameSize;
+    }
+
+    /**
+     * @return the bytes used in each segment, a whole number of frames
+     */
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public int getSegmentCount() {
+        return count;
+    }
+
+    /**
+     * @return regions of the take, such as detected voice segments, as start and end frame pairs; empty if none
+     */
+    public long[] getRegions() {
+        return regions;
+    }
+
+    public void setRegions(long[] regions) {
+        this.regions = regions == null ? NO_REGIONS : regions;
+    }
+
+    /**
+     * The segments themselves, valid up to {@link #getLength()}; segment i holds bytes from i * getSegmentBytes().
+     * Callers must hold a reference and must not modify them.
+     */
+    byte[][] segments() {
+        checkReleased();
+        return segments;
+    }
+
+    /**
+     * Appends bytes, taking new segments from the pool as needed.
+     */
+    public void write(byte[] data, int offset, int len) {
+        checkReleased();
+        long pos = length;
+        while (len > 0) {
+            int index = (int) (pos / segmentBytes);
+            int within = (int) (pos - (long) index * segmentBytes);
+            if (index == count) {
+                addSegment(pool.acquire());
+            }
+            int n = Math.min(len, segmentBytes - within);
+            System.arraycopy(data, offset, segments[index], within, n);
+            offset += n;
+            len -= n;
+            pos += n;
+        }
+        length = pos;
+    }
+
+    private void addSegment(byte[] segment) {
+        byte[][] current = segments;
+        if (count == current.length) {
+            byte[][] grown = new byte[Math.max(8, count * 2)][];
+            System.arraycopy(current, 0, grown, 0, count);
+            current = grown;
+        }
+        current[count++] = segment;
+        segments = current;
+    }
+
+    /**
+     * Copies up to frames frames starting at frame into dst.
+     *
+     * @return the number of frames copied, 0 at the end
+     */
+    public int read(long frame, byte[] dst, int offset, int frames) {
+        checkReleased();
+        frames = (int) Math.max(0, Math.min(frames, getFrameLength() - frame));
+        byte[][] segments = this.segments;
+        long pos = frame * frameSize;
+        long end = pos + (long) frames * frameSize;
+        while (pos < end) {
+            int index = (int) (pos / segmentBytes);
+            int within = (int) (pos - (long) index * segmentBytes);
+            int n = (int) Math.min(segmentBytes - within, end - pos);
+            System.arraycopy(segments[index], within, dst, offset, n);
+            offset += n;
+            pos += n;
+        }
+        return frames;
+    }
+
+    /**
+     * @return a stream over all frames appended so far
+     */
+    public AudioInputStream getAudioInputStream() {
+        return getAudioInputStream(0, getFrameLength());
+    }
+
+    /**
+     * A stream over a frame range, reading straight from the segments. Reset without a mark goes back to the start of
+     * the range. The view holds a reference to the store until it is closed, so close every view.
+     *
+     * @throws IllegalStateException if the segments are already back in the pool
+     */
+    public AudioInputStream getAudioInputStream(long startFrame, long frames) {
+        retain();
+        long start = Math.max(0, Math.min(startFrame, getFrameLength()));
+        long end = Math.min(getFrameLength(), start + Math.max(0, frames));
+        return new AudioInputStream(new View(start, end), format, end - start);
+    }
+
+    /**
+     * Adds a reference for a user that outlives the caller.
+     *
+     * @return this store
+     * @throws IllegalStateException if the segments are already back in the pool
+     */
+    public AudioStore retain() {
+        int n;
+        do {
+            n = references.get();
+            if (n <= 0) {
+                throw new IllegalStateException("Audio store already released");
+            }
+        } while (!references.compareAndSet(n, n + 1));
+        return this;
+    }
+
+    /**
+     * Drops a reference; the last one hands the segments back to the pool.
+     */
+    public void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        released = true;
+        byte[][] segments = this.segments;
+        this.segments = NONE;
+        for (int i = 0; i < count; i++) {
+            pool.release(segments[i]);
+            segments[i] = null;
+        }
+        count = 0;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    private void checkReleased() {
+        if (released) {
+            throw new IllegalStateException("Audio store already released");
+        }
+    }
+
+    private class View extends InputStream {
+
+        private final long end;
+        private long pos;
+        private long mark;
+        private volatile boolean closed;
+
+        View(long startFrame, long endFrame) {
+            this.pos = startFrame * frameSize;
+            this.end = endFrame * frameSize;
+            this.mark = pos;
+        }
+
+        public int read() throws IOException {
+            checkOpen();
+            if (pos >= end) {
+                return -1;
+            }
+            int index = (int) (pos / segmentBytes);
+            int value = segments[index][(int) (pos - (long) index * segmentBytes)] & 0xFF;
+            pos++;
+            return value;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkOpen();
+            if (pos >= end) {
+                return -1;
+            }
+            byte[][] segments = AudioStore.this.segments;
+            int total = (int) Math.min(len, end - pos);
+            for (int done = 0; done < total; ) {
+                int index = (int) (pos / segmentBytes);
+                int within = (int) (pos - (long) index * segmentBytes);
+                int n = Math.min(total - done, segmentBytes - within);
+                System.arraycopy(segments[index], within, b, off + done, n);
+                done += n;
+                pos += n;
+            }
+            return total;
+        }
+
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+
+        public boolean markSupported() {
+            return true;
+        }
+
+        public synchronized void mark(int readlimit) {
+            mark = pos;
+        }
+
+        public synchronized void reset() {
+            pos = mark;
+        }
+
+        /**
+         * Drops the view's reference; closing again does nothing.
+         */
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (released) {
+                throw new IOException("Audio store already released");
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless batch analysis of many recordings, using all cores.
+ * <p>
+ * Every file is decoded window by window (mapped for WAV, streamed otherwise), so a task only
+ * holds one window of samples whatever the file size. Per file it computes peak/RMS/clip stats
+ * and the waveform peak pyramid and can convert the file to 16 bit PCM WAV, optionally resampled
+ * to another rate by a {@link Resampler}. Tasks run on a fork-join pool and a semaphore bounds the
+ * decode buffers in flight.
+ *
+ * <pre>
+ * java jaudio.BatchProcessor &lt;dir|glob&gt; [-threads N] [-maxInflightMB M] [-convert outDir] [-rate Hz]
+ * </pre>
+ */
+public class BatchProcessor {
+
+    static final int WINDOW_FRAMES = 16384;
+
+    private final int threads;
+    private final long maxInflightBytes;
+    private final File convertDir;
+    private float convertRate = AudioSystem.NOT_SPECIFIED;
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+
+    public BatchProcessor(int threads, long maxInflightBytes, File convertDir) {
+        this.threads = threads;
+        this.maxInflightBytes = maxInflightBytes;
+        this.convertDir = convertDir;
+    }
+
+    /**
+     * @param convertRate sample rate of converted files, or AudioSystem.NOT_SPECIFIED to keep the file's rate
+     */
+    public void setConvertRate(float convertRate) {
+        this.convertRate = convertRate;
+    }
+
+    /**
+     * Stats of one processed file.
+     */
+    public static class FileResult {
+        File file;
+        AudioFormat format;
+        long frames;
+        float peak;
+        double rms;
+        long clipped;
+        PeakPyramid peaks;
+
+        public String toString() {
+            return String.format(Locale.ROOT, "%s\t%.3fs\t%s\tpeak %.1f dBFS\trms %.1f dBFS\tclipped %d", file, frames / format.getFrameRate(),
+                    format, LevelMeter.toDb(peak), LevelMeter.toDb(rms), clipped);
+        }
+    }
+
+    /**
+     * Processes all files and prints one line per file plus a throughput summary.
+     */
+    public void run(List<File> files) throws InterruptedException {
+        long taskBytes = (long) WINDOW_FRAMES * 8 * 4 * 2; // up to 8 channels, float window plus converted bytes
+        Semaphore inflight = new Semaphore((int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInflightBytes / taskBytes)));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        for (File file : files) {
+            inflight.acquire();
+            pool.execute(() -> {
+                try {
+                    FileResult result = process(file);
+                    System.out.println(result);
+                    filesDone.incrementAndGet();
+                    bytesDone.addAndGet(file.length());
+                } catch (Exception ex) {
+                    filesFailed.incrementAndGet();
+                    System.err.println(file + "\tfailed: " + ex);
+                } finally {
+                    inflight.release();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%d files (%d failed), %.1f MB in %.2fs: %.1f files/s, %.1f MB/s on %d threads", filesDone.get(),
+                filesFailed.get(), bytesDone.get() / 1e6, seconds, filesDone.get() / seconds, bytesDone.get() / 1e6 / seconds, threads));
+    }
+
+    /**
+     * Decodes one file window by window, collecting stats, peaks and the optional conversion.
+     */
+    public FileResult process(File file) throws Exception {
+        FileResult result = new FileResult();
+        result.file = file;
+        MappedWaveReader reader = null;
+        AudioInputStream stream = null;
+        try {
+            try {
+                reader = new MappedWaveReader(file);
+                result.format = reader.getFormat();
+            } catch (IOException ex) {
+                stream = LosslessCodec.getAudioInputStream(file);
+                result.format = stream.getFormat();
+            }
+            AudioFormat format = result.format;
+            int channels = format.getChannels();
+            float[] window = new float[WINDOW_FRAMES * channels];
+            result.peaks = new PeakPyramid(format, reader != null ? reader.getFrameLength() : Math.max(0, stream.getFrameLength()));
+
+            WaveFileWriter writer = null;
+            Resampler resampler = null;
+            float[] resampled = window;
+            byte[] converted = null;
+            if (convertDir != null) {
+                float rate = convertRate > 0 ? convertRate : format.getSampleRate();
+                AudioFormat target = new AudioFormat(rate, 16, channels, true, false);
+                writer = new WaveFileWriter(new File(convertDir, baseName(file) + ".wav"), target);
+                if (rate != format.getSampleRate()) {
+                    resampler = new Resampler(format.getSampleRate(), rate, channels);
+                    resampled = new float[Math.max(resampler.getOutputCapacity(WINDOW_FRAMES), resampler.getOutputCapacity(resampler.getTaps()))
+                            * channels];
+                }
+                converted = new byte[resampled.length * 2];
+            }
+            try {
+                PcmDecoder decoder = stream != null ? new PcmDecoder(format, true) : null;
+                byte[] raw = stream != null ? new byte[WINDOW_FRAMES * format.getFrameSize()] : null;
+                double sumSq = 0;
+                int frames;
+                while (true) {
+                    if (reader != null) {
+                        frames = reader.readFrames(result.frames, WINDOW_FRAMES, window);
+                    } else {
+                        int numBytesRead = stream.read(raw);
+                        frames = numBytesRead <= 0 ? 0 : numBytesRead / format.getFrameSize();
+                        decoder.decode(raw, 0, frames * format.getFrameSize(), window, 0);
+                    }
+                    if (frames == 0) {
+                        if (resampler != null) {
+                            write(writer, resampled, resampler.finish(resampled, 0) * channels, converted);
+                        }
+                        break;
+                    }
+                    int samples = frames * channels;
+                    float peak = result.peak;
+                    long clipped = 0;
+                    for (int i = 0; i < samples; i++) {
+                        float s = window[i];
+                        float a = Math.abs(s);
+                        if (a > peak) {
+                            peak = a;
+                        }
+                        if (a >= LevelMeter.CLIP_LEVEL) {
+                            clipped++;
+                        }
+                        sumSq += s * s;
+                    }
+                    result.peak = peak;
+                    result.clipped += clipped;
+                    result.peaks.append(window, 0, frames);
+                    if (resampler != null) {
+                        write(writer, resampled, resampler.process(window, 0, frames, resampled, 0) * channels, converted);
+                    } else if (writer != null) {
+                        write(writer, window, samples, converted);
+                    }
+                    result.frames += frames;
+                }
+                result.rms = result.frames == 0 ? 0 : Math.sqrt(sumSq / (result.frames * channels));
+            } finally {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            if (stream != null) {
+                stream.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes normalized samples as 16 bit little-endian PCM.
+     */
+    private static void write(WaveFileWriter writer, float[] samples, int count, byte[] converted) throws IOException {
+        for (int i = 0, p = 0; i < count; i++, p += 2) {
+            int v = Math.round(Math.max(-1f, Math.min(1f, samples[i])) * 32767f);
+            converted[p] = (byte) v;
+            converted[p + 1] = (byte) (v >> 8);
+        }
+        writer.write(converted, 0, count * 2);
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Expands a directory (all audio files below it) or a glob such as recordings/2024-*&#47;*.wav.
+     */
+    static List<File> listFiles(String arg) throws IOException {
+        Path path = Paths.get(arg);
+        PathMatcher matcher;
+        Path base;
+        if (Files.isDirectory(path)) {
+            base = path;
+            matcher = FileSystems.getDefault().getPathMatcher("glob:**.{wav,WAV,aif,aiff,AIF,AIFF,au,AU,jla,JLA}");
+        } else if (Files.isRegularFile(path)) {
+            List<File> single = new ArrayList<>();
+            single.add(path.toFile());
+            return single;
+        } else {
+            // walk from the deepest directory before the first glob character
+            int glob = arg.replaceAll("[*?\\[{].*", "").lastIndexOf(File.separatorChar);
+            base = Paths.get(glob < 0 ? "." : arg.substring(0, glob + 1));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + (glob < 0 ? "./" : "") + arg);
+        }
+        try (Stream<Path> walk = Files.walk(base)) {
+            return walk.filter(Files::isRegularFile).filter(matcher::matches).sorted().map(Path::toFile).collect(Collectors.toList());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: java jaudio.BatchProcessor <dir|glob> [-threads N] [-maxInflightMB M] [-convert outDir] [-rate Hz]");
+            System.exit(1);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        long maxInflightMB = 256;
+        File convertDir = null;
+        float rate = AudioSystem.NOT_SPECIFIED;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-maxInflightMB")) {
+                maxInflightMB = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-convert")) {
+                convertDir = new File(args[++i]);
+                convertDir.mkdirs();
+            } else if (args[i].equals("-rate")) {
+                rate = Float.parseFloat(args[++i]);
+            }
+        }
+        List<File> files = listFiles(args[0]);
+        BatchProcessor processor = new BatchProcessor(threads, maxInflightMB << 20, convertDir);
+        processor.setConvertRate(rate);
+        processor.run(files);
+    }
+}
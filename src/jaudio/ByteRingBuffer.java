@@ -0,0 +1,90 @@
+package jaudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of bytes.
+ * <p>
+ * The storage is allocated once. One thread may call {@link #write}, one other thread may call
+ * {@link #read} and {@link #skip}; the counters are published with ordered stores so neither side
+ * ever blocks or allocates. Waiting for data or space is left to the caller.
+ */
+public class ByteRingBuffer {
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // bytes written, producer only
+    private final AtomicLong tail = new AtomicLong(); // bytes read, consumer only
+
+    /**
+     * @param capacity minimum capacity in bytes, rounded up to a power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return bytes ready to read
+     */
+    public int available() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /**
+     * @return bytes that can be written without overwriting unread data
+     */
+    public int free() {
+        return buffer.length - available();
+    }
+
+    /**
+     * Copies as much of src as fits. Producer thread only.
+     *
+     * @return the number of bytes written
+     */
+    public int write(byte[] src, int offset, int length) {
+        long h = head.get();
+        int n = Math.min(length, buffer.length - (int) (h - tail.get()));
+        if (n <= 0) {
+            return 0;
+        }
+        int start = (int) h & mask;
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, first);
+        System.arraycopy(src, offset + first, buffer, 0, n - first);
+        head.lazySet(h + n);
+        return n;
+    }
+
+    /**
+     * Copies up to length bytes into dst. Consumer thread only.
+     *
+     * @return the number of bytes read
+     */
+    public int read(byte[] dst, int offset, int length) {
+        long t = tail.get();
+        int n = Math.min(length, (int) (head.get() - t));
+        if (n <= 0) {
+            return 0;
+        }
+        int start = (int) t & mask;
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, n - first);
+        tail.lazySet(t + n);
+        return n;
+    }
+
+    /**
+     * Drops everything written so far. Consumer thread only.
+     */
+    public void skip() {
+        tail.lazySet(head.get());
+    }
+}
@@ -0,0 +1,129 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+
+/**
+ * Captures an {@link AudioSource} into a WAV file or memory and keeps its peak pyramid. A memory take goes into an
+ * {@link AudioStore} of pooled segments, the same as a {@link Recorder} take, and is read from there in place.
+ * <p>
+ * Each step reads only what the source reports available, so a {@link LineSource}, a paced
+ * {@link SyntheticSource} or a {@link FileSource} never block the shared executor.
+ * <p>
+ * This is the headless capture path for many concurrent streams. The interactive take still goes through
+ * {@link Recorder}, which blocks on its line in a thread of its own and adds what a step on a shared executor
+ * cannot afford: the duplex monitor, overdub, voice detection and the live spectrogram.
+ */
+public class CaptureSession extends Session {
+
+    private final AudioSource source;
+    private final File target;
+    private final int chunkBytes;
+    private WaveFileWriter writer;
+    private volatile AudioStore store;
+    private PeakPyramid peaks;
+    private PcmDecoder decoder;
+    private byte[] chunk;
+    private float[] samples;
+
+    /**
+     * @param target WAV file to write, or null to capture into memory
+     */
+    public CaptureSession(String id, AudioSource source, File target) {
+        super(id);
+        this.source = source;
+        this.target = target;
+        AudioFormat format = source.getFormat();
+        // about 20 ms per read
+        this.chunkBytes = Math.max(1, (int) (format.getFrameRate() / 50)) * format.getFrameSize();
+    }
+
+    public AudioFormat getFormat() {
+        return source.getFormat();
+    }
+
+    public PeakPyramid getPeaks() {
+        return peaks;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * The take of a memory session, null for a file session. The frames appended so far can be read from any thread
+     * while the session runs. {@link AudioStore#retain() Retain} it to keep it past {@link #release()}.
+     */
+    public AudioStore getAudioStore() {
+        return store;
+    }
+
+    /**
+     * Hands the segments of a memory take back to the pool once its other users are done with them. Called by
+     * {@link SessionManager#remove}.
+     */
+    public void release() {
+        AudioStore store = this.store;
+        if (store != null) {
+            this.store = null;
+            store.release();
+        }
+    }
+
+    protected void open() throws Exception {
+        AudioFormat format = source.getFormat();
+        if (target != null) {
+            writer = new WaveFileWriter(target, format);
+        } else {
+            store = new AudioStore(format);
+        }
+        peaks = new PeakPyramid(format, 0);
+        decoder = new PcmDecoder(format, true);
+        chunk = new byte[chunkBytes];
+        samples = new float[chunkBytes / decoder.getBytesPerSample()];
+        metrics.lineOpened(chunkBytes);
+        source.start();
+    }
+
+    protected boolean step() throws Exception {
+        int frameSize = source.getFormat().getFrameSize();
+        // at most a buffer per tick, so an unpaced source cannot hold the executor thread forever
+        int budget = Math.max(source.getBufferSize(), chunkBytes);
+        int available;
+        while (budget > 0 && (available = Math.min(source.available(), budget)) >= frameSize) {
+            metrics.bufferFill(available);
+            long start = System.nanoTime();
+            int numBytesRead = source.read(chunk, 0, Math.min(chunk.length, available / frameSize * frameSize));
+            if (numBytesRead == -1) {
+                return false;
+            }
+            budget -= numBytesRead;
+            long read = System.nanoTime();
+            metrics.chunk(numBytesRead, read - start);
+            if (writer != null) {
+                writer.write(chunk, 0, numBytesRead);
+            } else {
+                store.write(chunk, 0, numBytesRead);
+            }
+            int frames = numBytesRead / frameSize;
+            decoder.decode(chunk, 0, numBytesRead, samples, 0);
+            peaks.append(samples, 0, frames);
+            countFrames(frames);
+            metrics.conversion(System.nanoTime() - read);
+        }
+        // a line never ends by itself, a source of known length ends after its last frame
+        long length = source.getFrameLength();
+        return length == AudioSystem.NOT_SPECIFIED || getFrames() < length;
+    }
+
+    protected void close() throws Exception {
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Full duplex play-through: mixes every captured chunk into a playback sink, over an optional backing take for
+ * overdubs, from the capture loop itself.
+ * <p>
+ * The sink is primed with the first {@link #getPrimeFrames()} of the backing (silence without one) and started
+ * together with the source, so the sink plays backing frame n while the source captures input frame n. From then
+ * on the backing advances with the captured frames, so a take recorded over it lines up frame for frame. Each
+ * chunk of input goes out mixed into the backing frames written with it, one round trip later.
+ * <p>
+ * Capture and playback run on separate clocks that drift apart by some parts per million. The drift shows up as
+ * the frames in flight, waiting in the source plus queued in the sink, slowly growing or shrinking; once their
+ * average leaves the level measured at the start by more than {@link #TOLERANCE_MILLIS}, output frames are dropped
+ * or repeated until it is back. The frames repeated minus dropped, plus what was lost in flight on its own, per
+ * captured frame is the drift. A sink found empty has played silence for as long as the capture loop was held
+ * up; the frames that stall adds in flight are dropped the same way, but counted as an underrun, not as drift.
+ * Writes never block the capture loop: what does not fit in the sink is dropped and counted. The round trip is
+ * measured per chunk as the frames still waiting in the source after a read, plus the chunk, plus the frames queued
+ * in the sink after the write. {@link #main} runs against a {@link SyntheticSource} and a {@link NullSink} whose
+ * clock runs off by a given drift:
+ *
+ * <pre>
+ * java jaudio.DuplexMonitor [-drift 200] [-seconds 10] [-rate 44100]
+ * </pre>
+ */
+public class DuplexMonitor implements AudioEndpoint.StateListener {
+
+    static final int TOLERANCE_MILLIS = 2;
+    static final int WARMUP_CHUNKS = 8;
+
+    private final AudioFormat format;
+    private final AudioSink sink;
+    private final PcmCache backing;
+    private final int frameSize;
+    private final int channels;
+    private final int primeFrames;
+    private final int tolerance;
+    private final PcmDecoder decoder;
+    private final PcmEncoder encoder;
+    private float gain = 1;
+    private byte[] bytes = new byte[0];
+    private float[] mix = new float[0];
+    private long backingPosition;
+    private long framesIn;
+    private long framesOut;
+    private long chunks;
+    private double queueAverage;
+    private double queueReference;
+    private long referenceFrames;
+    private double lostFrames;
+    private volatile long slips;
+    private volatile long dropped;
+    private volatile long underruns;
+    private volatile double roundTripFrames;
+    private volatile double driftPpm;
+
+    /**
+     * @param sink    an open sink in the capture format
+     * @param backing audio to play under the input from backingStart, or null to only monitor the input; left open
+     */
+    public DuplexMonitor(AudioFormat format, AudioSink sink, PcmCache backing, long backingStart) {
+        if (sink.getFormat().getFrameRate() != format.getFrameRate() || sink.getFormat().getChannels() != format.getChannels()) {
+            throw new IllegalArgumentException("Monitor sink format " + sink.getFormat() + " does not match " + format);
+        }
+        if (backing != null && !backing.getFormat().matches(format)) {
+            throw new IllegalArgumentException("Backing format " + backing.getFormat() + " does not match " + format);
+        }
+        this.format = format;
+        this.sink = sink;
+        this.backing = backing;
+        this.backingPosition = backingStart;
+        this.frameSize = format.getFrameSize();
+        this.channels = format.getChannels();
+        // half the sink buffer queued: room to absorb drift both ways
+        this.primeFrames = sink.getBufferSize() / sink.getFormat().getFrameSize() / 2;
+        this.tolerance = Math.max(8, (int) (format.getFrameRate() * TOLERANCE_MILLIS / 1000));
+        this.decoder = new PcmDecoder(format, true);
+        this.encoder = new PcmEncoder(sink.getFormat());
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public AudioSink getSink() {
+        return sink;
+    }
+
+    public float getGain() {
+        return gain;
+    }
+
+    /**
+     * Sets the level of the input in the mix, 0 to hear only the backing.
+     */
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    public int getPrimeFrames() {
+        return primeFrames;
+    }
+
+    /**
+     * Primes and starts the sink. Call right before starting the source, the sink then follows its state.
+     */
+    public void start(AudioSource source) throws IOException {
+        int frames = readBacking(primeFrames);
+        encode(frames);
+        sink.write(bytes, 0, frames * sink.getFormat().getFrameSize());
+        source.addStateListener(this);
+        sink.start();
+    }
+
+    public void stateChanged(boolean running, long framePosition) {
+        if (running) {
+            sink.start();
+        } else {
+            sink.stop();
+        }
+    }
+
+    /**
+     * Plays one captured chunk. Capture thread only.
+     *
+     * @param samples    the chunk, decoded and normalized
+     * @param frames     frames in the chunk
+     * @param inputQueue bytes still waiting in the source after the chunk was read
+     */
+    public void process(float[] samples, int frames, int inputQueue) throws IOException {
+        if (frames == 0) {
+            return;
+        }
+        int sinkFrameSize = sink.getFormat().getFrameSize();
+        // how late the read returned does not matter, what was not yet read will be played later
+        int queued = (sink.getBufferSize() - sink.available()) / sinkFrameSize;
+        int inFlight = inputQueue / frameSize + queued;
+        if (queued == 0 && chunks > WARMUP_CHUNKS) {
+            // nothing else writes to the sink, so it is still empty since it ran dry
+            underruns++;
+            lostFrames += Math.max(0, inFlight - queueAverage);
+        }
+        int slip = drift(inFlight, frames);
+        readBacking(frames);
+        float gain = this.gain;
+        for (int i = 0, n = frames * channels; i < n; i++) {
+            mix[i] += gain * samples[i];
+        }
+        int out = frames - slip;
+        // repeat the last frame to catch up
+        for (int f = frames; f < out; f++) {
+            System.arraycopy(mix, (frames - 1) * channels, mix, f * channels, channels);
+        }
+        encode(out);
+        int length = Math.min(out * sinkFrameSize, sink.available() / sinkFrameSize * sinkFrameSize);
+        int written = sink.write(bytes, 0, length);
+        dropped += out - written / sinkFrameSize;
+        framesIn += frames;
+        framesOut += written / sinkFrameSize;
+        double roundTrip = inputQueue / frameSize + frames + (sink.getBufferSize() - sink.available()) / sinkFrameSize;
+        roundTripFrames = chunks == 1 ? roundTrip : roundTripFrames + (roundTrip - roundTripFrames) / 16;
+        if (chunks > WARMUP_CHUNKS) {
+            driftPpm = -(slips - lostFrames + queueAverage - queueReference) * 1e6 / (framesIn - referenceFrames);
+        }
+    }
+
+    /**
+     * Tracks the frames in flight seen before each write.
+     *
+     * @return frames to drop from this chunk, negative to repeat
+     */
+    private int drift(int queued, int frames) {
+        chunks++;
+        if (chunks <= WARMUP_CHUNKS) {
+            queueAverage += (queued - queueAverage) / chunks;
+            queueReference = queueAverage;
+            referenceFrames = framesIn + frames;
+            return 0;
+        }
+        queueAverage += (queued - queueAverage) / 16;
+        double error = queueAverage - queueReference;
+        if (Math.abs(error) <= tolerance) {
+            return 0;
+        }
+        // a frame per chunk, more the further off, never enough to be heard as a jump
+        int slip = (int) Math.min(Math.max(1, (Math.abs(error) - tolerance) / 16), Math.max(1, frames / 64));
+        slip = error > 0 ? slip : -slip;
+        // the slip is already in the queue, do not slip again for it
+        queueAverage -= slip;
+        slips += slip;
+        return slip;
+    }
+
+    /**
+     * Reads backing frames into the mix, silence past its end.
+     *
+     * @return frames in the mix
+     */
+    private int readBacking(int frames) throws IOException {
+        int capacity = (frames + Math.max(1, frames / 64)) * channels;
+        if (mix.length < capacity) {
+            mix = new float[capacity];
+            bytes = new byte[capacity / channels * Math.max(frameSize, sink.getFormat().getFrameSize())];
+        }
+        int read = 0;
+        while (backing != null && read < frames) {
+            int n = backing.read(backingPosition, bytes, read * frameSize, frames - read);
+            if (n <= 0) {
+                break;
+            }
+            read += n;
+            backingPosition += n;
+        }
+        decoder.decode(bytes, 0, read * frameSize, mix, 0);
+        Arrays.fill(mix, read * channels, frames * channels, 0f);
+        return frames;
+    }
+
+    private void encode(int frames) {
+        encoder.encode(mix, 0, frames * channels, bytes, 0);
+    }
+
+    /**
+     * @return the averaged capture to playback round trip
+     */
+    public double getRoundTripMillis() {
+        return roundTripFrames * 1000 / format.getFrameRate();
+    }
+
+    /**
+     * @return output frames dropped minus frames repeated so far
+     */
+    public long getSlips() {
+        return slips;
+    }
+
+    /**
+     * @return how much faster the playback clock runs than the capture clock, in parts per million
+     */
+    public double getDriftPpm() {
+        return driftPpm;
+    }
+
+    /**
+     * @return how often the sink was found empty
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * @return frames that did not fit in the sink
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getFramesOut() {
+        return framesOut;
+    }
+
+    /**
+     * @return the backing frame that goes with the next captured frame
+     */
+    public long getBackingPosition() {
+        return backingPosition - primeFrames;
+    }
+
+    /**
+     * Stops following the source and closes the sink. The backing belongs to the caller, who may still read it.
+     */
+    public void close(AudioSource source) {
+        source.removeStateListener(this);
+        sink.stop();
+        sink.close();
+    }
+
+    public String toString() {
+        return String.format(Locale.ROOT, "round trip %.1f ms, drift %.0f ppm, %d frames slipped, %d underruns, %d dropped",
+                getRoundTripMillis(), getDriftPpm(), slips, underruns, dropped);
+    }
+
+    public static void main(String[] args) throws Exception {
+        double drift = 200;
+        int seconds = 10;
+        float rate = 44100;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-drift")) {
+                drift = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate")) {
+                rate = Float.parseFloat(args[++i]);
+            }
+        }
+        AudioFormat format = new AudioFormat(rate, 16, 2, true, false);
+        int bufferSize = (int) (rate / 10) * format.getFrameSize();
+        SyntheticSource source = new SyntheticSource(format, bufferSize, 440, 0.5f);
+        NullSink sink = new NullSink(format, bufferSize);
+        sink.setSpeed(1 + drift / 1e6);
+        DuplexMonitor monitor = new DuplexMonitor(format, sink, null, 0);
+        int chunkFrames = bufferSize / format.getFrameSize() / 8;
+        byte[] data = new byte[chunkFrames * format.getFrameSize()];
+        float[] samples = new float[chunkFrames * format.getChannels()];
+        PcmDecoder decoder = new PcmDecoder(format, true);
+        monitor.start(source);
+        source.start();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        long report = System.nanoTime();
+        while (System.nanoTime() < end) {
+            int n = source.read(data, 0, data.length);
+            decoder.decode(data, 0, n, samples, 0);
+            monitor.process(samples, n / format.getFrameSize(), source.available());
+            if (System.nanoTime() - report >= 1_000_000_000L) {
+                report = System.nanoTime();
+                System.out.println(String.format(Locale.ROOT, "queue %d frames, %s", (sink.getBufferSize() - sink.available()) / format.getFrameSize(),
+                        monitor));
+            }
+        }
+        source.close();
+        monitor.close(source);
+        System.out.println(String.format(Locale.ROOT, "%d s with the playback clock %.0f ppm off: %s", seconds, drift, monitor));
+    }
+}
@@ -0,0 +1,83 @@
+package jaudio;
+
+/**
+ * Reusable radix-2 FFT plan.
+ * <p>
+ * The twiddle factors and the bit reversal permutation are computed once per size; transforms
+ * run in place on caller owned arrays, so a plan can be shared by any number of threads.
+ */
+public class Fft {
+
+    private final int size;
+    private final float[] cos;
+    private final float[] sin;
+    private final int[] reverse;
+
+    public Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        int bits = Integer.numberOfTrailingZeros(size);
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2 * Math.PI * i / size;
+            cos[i] = (float) Math.cos(angle);
+            sin[i] = (float) Math.sin(angle);
+        }
+        reverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            reverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Forward transform of (re, im) in place.
+     */
+    public void forward(float[] re, float[] im) {
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            int j = reverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int half = 1, step = n / 2; half < n; half <<= 1, step >>= 1) {
+            for (int start = 0; start < n; start += half << 1) {
+                for (int k = 0, w = 0; k < half; k++, w += step) {
+                    int a = start + k;
+                    int b = a + half;
+                    float wr = cos[w];
+                    float wi = sin[w];
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Periodic Hann window of the given length.
+     */
+    public static float[] hann(int length) {
+        float[] window = new float[length];
+        for (int i = 0; i < length; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / length));
+        }
+        return window;
+    }
+}
@@ -0,0 +1,106 @@
+package jaudio;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Replays an audio file or stream as a capture source.
+ * <p>
+ * Unpaced by default, so a take is "captured" as fast as it can be read; with a speed set, frames become
+ * available at that multiple of real time. Nothing is dropped, a slow reader just falls behind. Reads return
+ * -1 at the end of the stream.
+ */
+public class FileSource extends PacedEndpoint implements AudioSource {
+
+    private final AudioInputStream stream;
+    private long consumed;
+    private boolean eof;
+
+    public FileSource(AudioInputStream stream, int bufferSize) {
+        super(stream.getFormat(), bufferSize);
+        this.stream = stream;
+        setSpeed(0);
+    }
+
+    /**
+     * Opens a file, including compressed {@link LosslessCodec} files, with a half second buffer.
+     */
+    public FileSource(File file) throws Exception {
+        this(LosslessCodec.getAudioInputStream(file));
+    }
+
+    public FileSource(AudioInputStream stream) {
+        this(stream, (int) (stream.getFormat().getFrameRate() / 2) * stream.getFormat().getFrameSize());
+    }
+
+    public long getFrameLength() {
+        return stream.getFrameLength();
+    }
+
+    public synchronized long getLongFramePosition() {
+        return consumed;
+    }
+
+    private synchronized long readyFrames() {
+        return isPaced() ? Math.max(0, clockFrames() - consumed) : Long.MAX_VALUE;
+    }
+
+    public int available() {
+        if (eof) {
+            return 0;
+        }
+        long ready = Math.min(readyFrames(), bufferSize / frameSize);
+        long length = stream.getFrameLength();
+        if (length != AudioSystem.NOT_SPECIFIED) {
+            ready = Math.min(ready, length - getLongFramePosition());
+        }
+        return (int) ready * frameSize;
+    }
+
+    public int read(byte[] b, int offset, int length) {
+        if (eof) {
+            return -1;
+        }
+        long wanted = length / frameSize;
+        long ready;
+        while ((ready = readyFrames()) < wanted && isRunning() && isOpen()) {
+            waitFrames(wanted - ready);
+        }
+        int frames = (int) Math.min(wanted, ready);
+        if (frames == 0) {
+            if (eof) {
+                return -1;
+            }
+            waitFrames(1);
+            return 0;
+        }
+        try {
+            int total = 0;
+            int numBytesRead;
+            while (total < frames * frameSize && (numBytesRead = stream.read(b, offset + total, frames * frameSize - total)) != -1) {
+                total += numBytesRead;
+            }
+            if (total < frames * frameSize) {
+                eof = true;
+            }
+            synchronized (this) {
+                consumed += total / frameSize;
+            }
+            return total == 0 && eof ? -1 : total;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public void close() {
+        super.close();
+        try {
+            stream.close();
+        } catch (IOException ex) {
+            // nothing left to release
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package jaudio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in power of two nanosecond buckets.
+ * <p>
+ * Bucket i counts durations in [2^(i-1), 2^i) ns, so recording is a leading zero count and two atomic
+ * adds; nothing is allocated and any number of threads may record while others read.
+ */
+public class LatencyHistogram {
+
+    static final int BUCKETS = 48;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        total.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public long getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    /**
+     * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+     * @return the upper bound of the bucket holding that fraction of the recorded durations
+     */
+    public long getPercentileNanos(double fraction) {
+        long[] snapshot = getCounts();
+        long count = 0;
+        for (long c : snapshot) {
+            count += c;
+        }
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(1L << i, max.get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return a copy of the bucket counts, index i holding durations below 2^i ns
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,239 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sizes the playback queue and chunks for low latency from what the line actually does.
+ * <p>
+ * The line is opened with room for {@link #getMaxMillis()} of audio, but only {@link #getQueueBytes()} are kept
+ * queued in it: the writer waits while the line holds more than that minus one chunk, so the queue is the output
+ * latency. It starts at the target latency, grows by half on every underrun and shrinks back toward the target by
+ * half the headroom that a whole settle window without underruns never touched. Chunks are a quarter of the
+ * queue. Each transfer records the audio queued after it, which is the latency achieved. A writer held up inside
+ * write refills an empty line before it can look, so the line also counts as having run empty when less is queued
+ * after a write than it wrote, see {@link #isUnderrun}. {@link #main} runs the tuner against a {@link NullSink}
+ * with simulated write jitter:
+ *
+ * <pre>
+ * java jaudio.LatencyTuner [-target 10] [-max 250] [-jitter 20] [-seconds 10] [-rate 44100]
+ * </pre>
+ */
+public class LatencyTuner {
+
+    static final int DEFAULT_TARGET_MILLIS = 10;
+    static final int DEFAULT_MAX_MILLIS = 250;
+    static final int SETTLE_MILLIS = 1000;
+    static final long MAX_WAIT_NANOS = 2_000_000L;
+
+    private final AudioFormat format;
+    private final int frameSize;
+    private final double bytesPerMilli;
+    private final int targetMillis;
+    private final int maxMillis;
+    private final int targetBytes;
+    private final int minChunkBytes;
+    private int maxQueueBytes;
+    private volatile int queueBytes;
+    private volatile int chunkBytes;
+    private volatile long underruns;
+    private int settledBytes;
+    private int minFill = Integer.MAX_VALUE;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * @param targetMillis latency to aim for
+     * @param maxMillis latency the queue may grow to when the target cannot be held
+     */
+    public LatencyTuner(AudioFormat format, int targetMillis, int maxMillis) {
+        this.format = format;
+        this.frameSize = format.getFrameSize();
+        this.bytesPerMilli = format.getFrameRate() * frameSize / 1000;
+        this.targetMillis = targetMillis;
+        this.maxMillis = Math.max(targetMillis, maxMillis);
+        // a chunk is at least a millisecond, the queue at least two chunks
+        this.minChunkBytes = frames((int) Math.ceil(bytesPerMilli));
+        this.targetBytes = Math.max(2 * minChunkBytes, frames((int) (targetMillis * bytesPerMilli)));
+        this.maxQueueBytes = Math.max(targetBytes, frames((int) (this.maxMillis * bytesPerMilli)));
+        resize(targetBytes);
+    }
+
+    public LatencyTuner(AudioFormat format, int targetMillis) {
+        this(format, targetMillis, DEFAULT_MAX_MILLIS);
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public int getTargetMillis() {
+        return targetMillis;
+    }
+
+    public int getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @return the line buffer to ask for, room for the largest queue
+     */
+    public int getLineBufferSize() {
+        return maxQueueBytes;
+    }
+
+    /**
+     * Caps the queue at the buffer the line was actually opened with.
+     */
+    public synchronized void lineOpened(int bufferSize) {
+        maxQueueBytes = Math.max(2 * minChunkBytes, Math.min(maxQueueBytes, frames(bufferSize)));
+        resize(Math.min(queueBytes, maxQueueBytes));
+    }
+
+    public int getQueueBytes() {
+        return queueBytes;
+    }
+
+    public double getQueueMillis() {
+        return queueBytes / bytesPerMilli;
+    }
+
+    /**
+     * @return bytes to write per transfer
+     */
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * @return audio queued in the line after each transfer
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @param fill bytes queued in the line
+     * @return how long to wait before the next chunk fits in the queue, 0 to write it now
+     */
+    public long waitNanos(int fill) {
+        int excess = fill + chunkBytes - queueBytes;
+        if (excess <= 0) {
+            return 0;
+        }
+        return Math.max(50_000L, Math.min(MAX_WAIT_NANOS, toNanos(excess)));
+    }
+
+    /**
+     * @param fill bytes queued in the line before a write
+     * @param length bytes written
+     * @param queued bytes queued in the line after it
+     * @return whether the line ran empty before or during the write
+     */
+    public static boolean isUnderrun(int fill, int length, int queued) {
+        return fill == 0 || queued < length;
+    }
+
+    /**
+     * Records a transfer and adapts the queue to it.
+     *
+     * @param fill bytes queued in the line before the transfer
+     * @param length bytes written
+     * @param queued bytes queued in the line after it
+     * @param underrun whether the line ran empty since the previous transfer
+     */
+    public synchronized void written(int fill, int length, int queued, boolean underrun) {
+        latency.record(toNanos(queued));
+        if (underrun) {
+            underruns++;
+            resize(Math.min(maxQueueBytes, frames(queueBytes * 3 / 2 + minChunkBytes)));
+            settledBytes = 0;
+            minFill = Integer.MAX_VALUE;
+            return;
+        }
+        minFill = Math.min(minFill, fill);
+        settledBytes += length;
+        if (settledBytes >= SETTLE_MILLIS * bytesPerMilli) {
+            // the lowest fill of a clean window is headroom that was never needed
+            if (queueBytes > targetBytes && minFill > 0) {
+                resize(Math.max(targetBytes, frames(queueBytes - Math.min(minFill / 2, queueBytes / 4))));
+            }
+            settledBytes = 0;
+            minFill = Integer.MAX_VALUE;
+        }
+    }
+
+    private void resize(int queue) {
+        queueBytes = queue;
+        chunkBytes = Math.max(minChunkBytes, frames(queue / 4));
+    }
+
+    private int frames(int bytes) {
+        return Math.max(frameSize, bytes / frameSize * frameSize);
+    }
+
+    long toNanos(int bytes) {
+        return (long) (bytes / bytesPerMilli * 1e6);
+    }
+
+    public String toString() {
+        return String.format(Locale.ROOT, "target %d ms, queue %.1f ms, latency mean %.1f ms, max %.1f ms, %d underruns",
+                targetMillis, getQueueMillis(), latency.getMeanNanos() / 1e6, latency.getMaxNanos() / 1e6, underruns);
+    }
+
+    public static void main(String[] args) {
+        int target = DEFAULT_TARGET_MILLIS;
+        int max = DEFAULT_MAX_MILLIS;
+        double jitter = 20;
+        int seconds = 10;
+        float rate = 44100;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-target")) {
+                target = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-max")) {
+                max = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-jitter")) {
+                jitter = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate")) {
+                rate = Float.parseFloat(args[++i]);
+            }
+        }
+        AudioFormat format = new AudioFormat(rate, 16, 2, true, false);
+        LatencyTuner tuner = new LatencyTuner(format, target, max);
+        NullSink sink = new NullSink(format, tuner.getLineBufferSize());
+        sink.setSpeed(1);
+        sink.setJitter(jitter);
+        tuner.lineOpened(sink.getBufferSize());
+        int bufferSize = sink.getBufferSize();
+        byte[] data = new byte[bufferSize];
+        boolean primed = false;
+        sink.start();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        long report = System.nanoTime();
+        while (System.nanoTime() < end) {
+            int fill = bufferSize - sink.available();
+            long wait = tuner.waitNanos(fill);
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            int written = sink.write(data, 0, tuner.getChunkBytes());
+            int queued = bufferSize - sink.available();
+            tuner.written(fill, written, queued, primed && isUnderrun(fill, written, queued));
+            primed = true;
+            if (System.nanoTime() - report >= 1_000_000_000L) {
+                report = System.nanoTime();
+                System.out.println(String.format(Locale.ROOT, "queue %.1f ms, chunk %d bytes, %d underruns", tuner.getQueueMillis(),
+                        tuner.getChunkBytes(), tuner.getUnderruns()));
+            }
+        }
+        sink.close();
+        System.out.println(String.format(Locale.ROOT, "%d s with up to %.0f ms write jitter: %s", seconds, jitter, tuner));
+    }
+}
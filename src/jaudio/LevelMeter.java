@@ -0,0 +1,280 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Peak, RMS and clip meters per channel, measured straight from raw PCM bytes.
+ * <p>
+ * {@link #update} runs on the capture or playback thread once per chunk: integer formats are read into ints
+ * without going through floats, and nothing is allocated. Each update publishes the chunk's peak and RMS plus
+ * the take's peak hold and clip count through a sequence lock over an AtomicLongArray, so
+ * {@link #read(Levels)} can take a consistent snapshot from any thread without blocking the writer. A sample
+ * clips when it reaches {@link #CLIP_LEVEL} of full scale.
+ */
+public class LevelMeter {
+
+    /**
+     * Fraction of full scale at which a sample counts as clipped.
+     */
+    static final float CLIP_LEVEL = 0.999f;
+
+    private static final int PEAK = 0;
+    private static final int RMS = 1;
+    private static final int HOLD = 2;
+    private static final int CLIPPED = 3;
+    private static final int FIELDS = 4;
+
+    private final AudioFormat format;
+    private final int channels;
+    private final int frameSize;
+    private final int bytesPerSample;
+    private final boolean isFloat;
+    private final boolean unsigned;
+    private final boolean bigEndian;
+    private final double fullScale;
+    private final long clipLevel;
+    private final double[] peak;
+    private final double[] sumSquares;
+    private final float[] hold;
+    private final long[] clipped;
+    // [sequence, frames, then FIELDS per channel], odd sequence while an update is being published
+    private final AtomicLongArray published;
+    private long frames;
+
+    public LevelMeter(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        isFloat = AudioFormat.Encoding.PCM_FLOAT.equals(encoding);
+        unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding);
+        if (!isFloat && !unsigned && !AudioFormat.Encoding.PCM_SIGNED.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+        if (isFloat ? (bits != 32 && bits != 64) : (bits != 8 && bits != 16 && bits != 24 && bits != 32)) {
+            throw new IllegalArgumentException("Unsupported sample size: " + bits);
+        }
+        this.format = format;
+        this.channels = format.getChannels();
+        this.frameSize = format.getFrameSize();
+        this.bytesPerSample = bits / 8;
+        this.bigEndian = format.isBigEndian();
+        this.fullScale = isFloat ? 1 : (double) (1L << (bits - 1));
+        this.clipLevel = Math.min((long) Math.ceil(CLIP_LEVEL * fullScale), (long) fullScale - 1);
+        this.peak = new double[channels];
+        this.sumSquares = new double[channels];
+        this.hold = new float[channels];
+        this.clipped = new long[channels];
+        this.published = new AtomicLongArray(2 + FIELDS * channels);
+    }
+
+    /**
+     * @return a linear level relative to full scale in dBFS, -infinity for silence
+     */
+    static double toDb(double level) {
+        return level > 0 ? 20 * Math.log10(level) : Double.NEGATIVE_INFINITY;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Measures one chunk of interleaved frames and publishes the result. Called by a single thread.
+     */
+    public void update(byte[] data, int offset, int length) {
+        int n = length / frameSize;
+        if (n == 0) {
+            return;
+        }
+        for (int c = 0; c < channels; c++) {
+            int start = offset + c * bytesPerSample;
+            if (isFloat) {
+                measureFloat(data, start, n, c);
+            } else if (bytesPerSample == 4) {
+                measureInt32(data, start, n, c);
+            } else {
+                measureInt(data, start, n, c);
+            }
+        }
+        frames += n;
+        publish(n);
+    }
+
+    /**
+     * 8, 16 and 24 bit samples: squares fit in a long for any chunk a line can deliver.
+     */
+    private void measureInt(byte[] data, int start, int n, int c) {
+        int max = 0;
+        long sum = 0;
+        long clips = 0;
+        int clip = (int) clipLevel;
+        int end = start + n * frameSize;
+        switch (bytesPerSample) {
+            case 1: {
+                int bias = unsigned ? 128 : 0;
+                for (int p = start; p < end; p += frameSize) {
+                    int v = unsigned ? (data[p] & 0xFF) - bias : data[p];
+                    int a = Math.abs(v);
+                    max = Math.max(max, a);
+                    sum += v * v;
+                    clips += a >= clip ? 1 : 0;
+                }
+                break;
+            }
+            case 2: {
+                int hi = bigEndian ? 0 : 1;
+                int lo = 1 - hi;
+                int flip = unsigned ? 0x8000 : 0;
+                for (int p = start; p < end; p += frameSize) {
+                    int v = (short) (((data[p + hi] << 8) | (data[p + lo] & 0xFF)) ^ flip);
+                    int a = Math.abs(v);
+                    max = Math.max(max, a);
+                    sum += v * v;
+                    clips += a >= clip ? 1 : 0;
+                }
+                break;
+            }
+            default: {
+                int hi = bigEndian ? 0 : 2;
+                int lo = 2 - hi;
+                int flip = unsigned ? 0x800000 : 0;
+                for (int p = start; p < end; p += frameSize) {
+                    int v = (((data[p + hi] & 0xFF) << 16 | (data[p + 1] & 0xFF) << 8 | (data[p + lo] & 0xFF)) ^ flip) << 8 >> 8;
+                    int a = Math.abs(v);
+                    max = Math.max(max, a);
+                    sum += (long) v * v;
+                    clips += a >= clip ? 1 : 0;
+                }
+                break;
+            }
+        }
+        peak[c] = max;
+        sumSquares[c] = sum;
+        clipped[c] += clips;
+    }
+
+    private void measureInt32(byte[] data, int start, int n, int c) {
+        long max = 0;
+        double sum = 0;
+        long clips = 0;
+        int flip = unsigned ? 0x80000000 : 0;
+        int end = start + n * frameSize;
+        for (int p = start; p < end; p += frameSize) {
+            long v = bits(data, p, 4) ^ flip;
+            long a = Math.abs(v);
+            max = Math.max(max, a);
+            sum += (double) v * v;
+            clips += a >= clipLevel ? 1 : 0;
+        }
+        peak[c] = max;
+        sumSquares[c] = sum;
+        clipped[c] += clips;
+    }
+
+    private void measureFloat(byte[] data, int start, int n, int c) {
+        double max = 0;
+        double sum = 0;
+        long clips = 0;
+        int end = start + n * frameSize;
+        for (int p = start; p < end; p += frameSize) {
+            double v = bytesPerSample == 8 ? Double.longBitsToDouble(bits(data, p, 8)) : Float.intBitsToFloat((int) bits(data, p, 4));
+            double a = Math.abs(v);
+            max = Math.max(max, a);
+            sum += v * v;
+            clips += a >= CLIP_LEVEL ? 1 : 0;
+        }
+        peak[c] = max;
+        sumSquares[c] = sum;
+        clipped[c] += clips;
+    }
+
+    private long bits(byte[] data, int p, int bytes) {
+        long v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v |= (long) (data[p + i] & 0xFF) << (8 * (bigEndian ? bytes - 1 - i : i));
+        }
+        return bytes == 4 ? (int) v : v;
+    }
+
+    private void publish(int n) {
+        long sequence = published.get(0) + 1;
+        published.set(0, sequence);
+        published.set(1, frames);
+        for (int c = 0; c < channels; c++) {
+            float p = (float) (peak[c] / fullScale);
+            float r = (float) (Math.sqrt(sumSquares[c] / n) / fullScale);
+            hold[c] = Math.max(hold[c], p);
+            int base = 2 + c * FIELDS;
+            published.set(base + PEAK, Float.floatToRawIntBits(p));
+            published.set(base + RMS, Float.floatToRawIntBits(r));
+            published.set(base + HOLD, Float.floatToRawIntBits(hold[c]));
+            published.set(base + CLIPPED, clipped[c]);
+        }
+        published.set(0, sequence + 1);
+    }
+
+    /**
+     * Copies the latest published levels into the given snapshot without blocking the writer.
+     *
+     * @param levels a snapshot to reuse, or null to create one
+     * @return the filled snapshot
+     */
+    public Levels read(Levels levels) {
+        if (levels == null || levels.peak.length != channels) {
+            levels = new Levels(channels);
+        }
+        while (true) {
+            long sequence = published.get(0);
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            levels.frames = published.get(1);
+            for (int c = 0; c < channels; c++) {
+                int base = 2 + c * FIELDS;
+                levels.peak[c] = Float.intBitsToFloat((int) published.get(base + PEAK));
+                levels.rms[c] = Float.intBitsToFloat((int) published.get(base + RMS));
+                levels.peakHold[c] = Float.intBitsToFloat((int) published.get(base + HOLD));
+                levels.clipped[c] = published.get(base + CLIPPED);
+            }
+            if (published.get(0) == sequence) {
+                levels.sequence = sequence / 2;
+                return levels;
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the meters, levels normalized to full scale.
+     */
+    public static class Levels {
+        /**
+         * Number of updates published so far, unchanged means no new audio.
+         */
+        public long sequence;
+        public long frames;
+        public final float[] peak;
+        public final float[] rms;
+        public final float[] peakHold;
+        public final long[] clipped;
+
+        public Levels(int channels) {
+            peak = new float[channels];
+            rms = new float[channels];
+            peakHold = new float[channels];
+            clipped = new long[channels];
+        }
+
+        public long getClippedTotal() {
+            long total = 0;
+            for (long c : clipped) {
+                total += c;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineEvent;
+import javax.sound.sampled.LineListener;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An endpoint backed by an opened Java Sound data line; START, STOP and CLOSE line events become state changes.
+ */
+abstract class LineEndpoint<L extends DataLine> implements AudioEndpoint, LineListener {
+
+    final L line;
+    private final List<StateListener> listeners = new CopyOnWriteArrayList<>();
+
+    LineEndpoint(L line) {
+        this.line = line;
+        line.addLineListener(this);
+    }
+
+    public L getLine() {
+        return line;
+    }
+
+    public AudioFormat getFormat() {
+        return line.getFormat();
+    }
+
+    public int getBufferSize() {
+        return line.getBufferSize();
+    }
+
+    public int available() {
+        return line.available();
+    }
+
+    public long getLongFramePosition() {
+        return line.getLongFramePosition();
+    }
+
+    public void start() {
+        line.start();
+    }
+
+    public void stop() {
+        line.stop();
+    }
+
+    public boolean isRunning() {
+        return line.isRunning();
+    }
+
+    public boolean isOpen() {
+        return line.isOpen();
+    }
+
+    public void addStateListener(StateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeStateListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void close() {
+        line.close();
+        line.removeLineListener(this);
+    }
+
+    public void update(LineEvent event) {
+        LineEvent.Type type = event.getType();
+        if (type == LineEvent.Type.START || type == LineEvent.Type.STOP || type == LineEvent.Type.CLOSE) {
+            long frame = event.getFramePosition();
+            if (frame == AudioSystem.NOT_SPECIFIED && type != LineEvent.Type.CLOSE) {
+                frame = line.getLongFramePosition();
+            }
+            for (StateListener listener : listeners) {
+                listener.stateChanged(type == LineEvent.Type.START, frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays to a SourceDataLine.
+ */
+public class LineSink extends LineEndpoint<SourceDataLine> implements AudioSink {
+
+    public LineSink(SourceDataLine line) {
+        super(line);
+    }
+
+    /**
+     * Opens the default playback line for a format.
+     *
+     * @param bufferSize line buffer in bytes, or AudioSystem.NOT_SPECIFIED for the default
+     */
+    public static LineSink open(AudioFormat format, int bufferSize) throws LineUnavailableException {
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        if (!AudioSystem.isLineSupported(info)) {
+            throw new LineUnavailableException("Line matching " + info + " not supported.");
+        }
+        SourceDataLine line = (SourceDataLine) AudioSystem.getLine(info);
+        if (bufferSize == AudioSystem.NOT_SPECIFIED) {
+            line.open(format);
+        } else {
+            line.open(format, bufferSize);
+        }
+        return new LineSink(line);
+    }
+
+    public int write(byte[] b, int offset, int length) {
+        return line.write(b, offset, length);
+    }
+
+    public void flush() {
+        line.flush();
+    }
+
+    public void drain() {
+        line.drain();
+    }
+}
@@ -0,0 +1,38 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Captures from a TargetDataLine.
+ */
+public class LineSource extends LineEndpoint<TargetDataLine> implements AudioSource {
+
+    public LineSource(TargetDataLine line) {
+        super(line);
+    }
+
+    /**
+     * Opens the default capture line for a format, with its default buffer size.
+     */
+    public static LineSource open(AudioFormat format) throws LineUnavailableException {
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+        if (!AudioSystem.isLineSupported(info)) {
+            throw new LineUnavailableException("Line matching " + info + " not supported.");
+        }
+        TargetDataLine line = (TargetDataLine) AudioSystem.getLine(info);
+        line.open(format, line.getBufferSize());
+        return new LineSource(line);
+    }
+
+    public long getFrameLength() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    public int read(byte[] b, int offset, int length) {
+        return line.read(b, offset, length);
+    }
+}
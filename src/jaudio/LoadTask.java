@@ -0,0 +1,126 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Reads the peaks of an opened file off the event thread, so the file plays while its waveform fills in.
+ * <p>
+ * The pyramid exists, empty and sized from the header, before the task runs; views can paint it at any time and
+ * see it grow chunk by chunk. Plain PCM wave files are read through a {@link MappedWaveReader}, everything else
+ * through the audio system or the codec. Progress is reported per chunk and cancellation takes effect between
+ * chunks, leaving the pyramid with what was read so far. A complete pyramid is stored in the {@link PeakCache}, if
+ * one is set, for the next time the file is opened.
+ * <p>
+ * Run it as a SwingWorker with {@link #execute()}, or synchronously with {@link #load()}.
+ */
+public class LoadTask extends SwingWorker<PeakPyramid, Void> {
+
+    static final int CHUNK_FRAMES = 1 << 16;
+
+    private final File file;
+    private final long frameLength;
+    private final PeakPyramid peaks;
+    private PeakCache peakCache;
+
+    /**
+     * @param format      the format the file's header announced
+     * @param frameLength the frames the header announced, or AudioSystem.NOT_SPECIFIED
+     */
+    public LoadTask(File file, AudioFormat format, long frameLength) {
+        this.file = file;
+        this.frameLength = frameLength;
+        this.peaks = new PeakPyramid(format, Math.max(0, frameLength));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the pyramid being filled
+     */
+    public PeakPyramid getPeaks() {
+        return peaks;
+    }
+
+    /**
+     * Sets where to keep the peaks once the whole file is read, null for nowhere.
+     */
+    public void setPeakCache(PeakCache peakCache) {
+        this.peakCache = peakCache;
+    }
+
+    protected PeakPyramid doInBackground() throws Exception {
+        return load();
+    }
+
+    /**
+     * Reads the whole file on the calling thread.
+     *
+     * @return the filled pyramid
+     */
+    public PeakPyramid load() throws Exception {
+        MappedWaveReader reader;
+        try {
+            reader = new MappedWaveReader(file);
+        } catch (Exception ex) {
+            reader = null; // not plain PCM wave
+        }
+        if (reader != null) {
+            try (MappedWaveReader r = reader) {
+                loadMapped(r);
+            }
+        } else {
+            try (AudioInputStream stream = LosslessCodec.getAudioInputStream(file)) {
+                loadStream(stream);
+            }
+        }
+        if (peakCache != null) {
+            try {
+                peakCache.store(file, peaks);
+            } catch (IOException ex) {
+                System.err.println("Unable to store peaks of " + file + ": " + ex);
+            }
+        }
+        return peaks;
+    }
+
+    private void loadMapped(MappedWaveReader reader) throws IOException {
+        float[] window = new float[CHUNK_FRAMES * reader.getFormat().getChannels()];
+        long frame = 0;
+        int frames;
+        while ((frames = reader.readFrames(frame, CHUNK_FRAMES, window)) > 0) {
+            checkCancelled();
+            peaks.append(window, 0, frames);
+            frame += frames;
+            progress(frame);
+        }
+    }
+
+    private void loadStream(AudioInputStream stream) throws IOException {
+        byte[] data = new byte[CHUNK_FRAMES * stream.getFormat().getFrameSize()];
+        int numBytesRead;
+        while ((numBytesRead = stream.read(data)) != -1) {
+            checkCancelled();
+            peaks.append(data, 0, numBytesRead);
+            progress(peaks.getFrameLength());
+        }
+    }
+
+    private void progress(long frames) {
+        if (frameLength > 0) {
+            setProgress((int) Math.min(100, frames * 100 / frameLength));
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (isCancelled() || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Load cancelled");
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.stream.IntStream;
+
+/**
+ * Lossless block compression of integer PCM, encoded in parallel and decoded as a stream.
+ * <p>
+ * File layout, all integers big-endian:
+ * <pre>
+ * header: "JLAC"  u8 version=1  u8 flags (1 = unsigned, 2 = big-endian)  u8 channels  u8 bits
+ *         f32 sample rate  s64 frames (-1 if unknown)  u32 frames per block
+ * block:  u32 frames (0 ends the file)  u32 payload bytes  payload
+ * </pre>
+ * Each payload holds one bit packed record per channel: a 3 bit fixed predictor order (0-4, the
+ * FLAC fixed polynomials), a 5 bit Rice parameter k, order warm-up samples of bits bits each, then
+ * every residual zigzag mapped and Rice coded as q ones, a zero and k low bits. A quotient of 32 or
+ * more is written as 32 ones followed by the raw 32 bit value. The payload is padded to a byte.
+ * Blocks are independent, so they are encoded on all cores.
+ */
+public class LosslessCodec {
+
+    public static final AudioFileFormat.Type JLA = new AudioFileFormat.Type("JLA", "jla");
+    static final int MAGIC = 0x4A4C4143; // "JLAC"
+    static final int VERSION = 1;
+    static final int BLOCK_FRAMES = 4096;
+    static final int MAX_ORDER = 4;
+    static final int ESCAPE = 32;
+    private static final int BATCH_BLOCKS = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Encodes the remaining frames of a 8, 16 or 24 bit integer PCM stream.
+     *
+     * @return the number of bytes written
+     */
+    public static long encode(AudioInputStream in, OutputStream os) throws IOException {
+        AudioFormat format = in.getFormat();
+        int bits = format.getSampleSizeInBits();
+        boolean unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding());
+        if ((!unsigned && !AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())) || (bits != 8 && bits != 16 && bits != 24)) {
+            throw new IllegalArgumentException("Only 8, 16 or 24 bit integer PCM can be compressed: " + format);
+        }
+        int channels = format.getChannels();
+        int frameSize = format.getFrameSize();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte((unsigned ? 1 : 0) | (format.isBigEndian() ? 2 : 0));
+        out.writeByte(channels);
+        out.writeByte(bits);
+        out.writeFloat(format.getSampleRate());
+        out.writeLong(in.getFrameLength());
+        out.writeInt(BLOCK_FRAMES);
+
+        byte[] batch = new byte[BATCH_BLOCKS * BLOCK_FRAMES * frameSize];
+        byte[][] encoded = new byte[BATCH_BLOCKS][];
+        while (true) {
+            int fill = 0;
+            int numBytesRead;
+            while (fill < batch.length && (numBytesRead = in.read(batch, fill, batch.length - fill)) != -1) {
+                fill += numBytesRead;
+            }
+            int frames = fill / frameSize;
+            if (frames == 0) {
+                break;
+            }
+            int blocks = (frames + BLOCK_FRAMES - 1) / BLOCK_FRAMES;
+            IntStream.range(0, blocks).parallel().forEach(b -> {
+                int blockFrames = Math.min(BLOCK_FRAMES, frames - b * BLOCK_FRAMES);
+                int[] samples = new int[blockFrames * channels];
+                toInts(batch, b * BLOCK_FRAMES * frameSize, samples, bits, format.isBigEndian(), unsigned);
+                encoded[b] = encodeBlock(samples, blockFrames, channels, bits);
+            });
+            for (int b = 0; b < blocks; b++) {
+                out.writeInt(Math.min(BLOCK_FRAMES, frames - b * BLOCK_FRAMES));
+                out.writeInt(encoded[b].length);
+                out.write(encoded[b]);
+            }
+            if (fill < batch.length) {
+                break;
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+        return out.size();
+    }
+
+    /**
+     * Saves a stream as a compressed file.
+     */
+    public static long encode(AudioInputStream in, File file) throws IOException {
+        try (OutputStream os = new FileOutputStream(file)) {
+            return encode(in, os);
+        }
+    }
+
+    /**
+     * Opens a compressed file as a PCM stream, or any other audio file through AudioSystem.
+     */
+    public static AudioInputStream getAudioInputStream(File file) throws Exception {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        in.mark(4);
+        int magic = new DataInputStream(in).readInt();
+        in.reset();
+        if (magic != MAGIC) {
+            in.close();
+            return AudioSystem.getAudioInputStream(file);
+        }
+        return getAudioInputStream(in);
+    }
+
+    /**
+     * Reads the header and returns a stream that decodes block by block as it is read.
+     */
+    public static AudioInputStream getAudioInputStream(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a JLA stream");
+        }
+        int flags = in.readUnsignedByte();
+        int channels = in.readUnsignedByte();
+        int bits = in.readUnsignedByte();
+        float rate = in.readFloat();
+        long frames = in.readLong();
+        in.readInt(); // frames per block, only needed by seeking readers
+        boolean unsigned = (flags & 1) != 0;
+        boolean bigEndian = (flags & 2) != 0;
+        AudioFormat format = new AudioFormat(unsigned ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED, rate, bits, channels,
+                bits / 8 * channels, rate, bigEndian);
+        return new AudioInputStream(new BlockDecoder(in, channels, bits, bigEndian, unsigned), format, frames < 0 ? AudioSystem.NOT_SPECIFIED : frames);
+    }
+
+    static byte[] encodeBlock(int[] samples, int frames, int channels, int bits) {
+        BitWriter writer = new BitWriter(frames * channels * bits / 8 + 64);
+        int[] residual = new int[frames];
+        for (int c = 0; c < channels; c++) {
+            int order = chooseOrder(samples, c, channels, frames);
+            for (int i = order; i < frames; i++) {
+                residual[i] = samples[i * channels + c] - predict(samples, c, channels, i, order);
+            }
+            int k = chooseRiceParameter(residual, order, frames);
+            writer.write(order, 3);
+            writer.write(k, 5);
+            for (int i = 0; i < order; i++) {
+                writer.write(samples[i * channels + c], bits);
+            }
+            for (int i = order; i < frames; i++) {
+                int r = residual[i];
+                int u = (r << 1) ^ (r >> 31);
+                int q = u >>> k;
+                if (q >= ESCAPE) {
+                    writer.ones(ESCAPE);
+                    writer.write(u, 32);
+                } else if (q + 1 + k <= 32) {
+                    // q ones, the zero and the low bits in one write
+                    writer.write((int) ((((1L << q) - 1) << (k + 1)) | (u & ((1L << k) - 1))), q + 1 + k);
+                } else {
+                    writer.ones(q);
+                    writer.write(0, 1);
+                    writer.write(u, k);
+                }
+            }
+        }
+        writer.align();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Prediction of sample i of channel c by the fixed polynomial of the given order.
+     */
+    private static int predict(int[] s, int c, int ch, int i, int order) {
+        switch (order) {
+            case 0:
+                return 0;
+            case 1:
+                return s[(i - 1) * ch + c];
+            case 2:
+                return 2 * s[(i - 1) * ch + c] - s[(i - 2) * ch + c];
+            case 3:
+                return 3 * s[(i - 1) * ch + c] - 3 * s[(i - 2) * ch + c] + s[(i - 3) * ch + c];
+            default:
+                return 4 * s[(i - 1) * ch + c] - 6 * s[(i - 2) * ch + c] + 4 * s[(i - 3) * ch + c] - s[(i - 4) * ch + c];
+        }
+    }
+
+    /**
+     * Picks the fixed predictor with the smallest sum of absolute residuals, in one pass over the channel.
+     */
+    private static int chooseOrder(int[] s, int c, int ch, int frames) {
+        if (frames <= MAX_ORDER) {
+            return 0;
+        }
+        long[] error = new long[MAX_ORDER + 1];
+        int x1 = s[3 * ch + c], x2 = s[2 * ch + c], x3 = s[ch + c], x4 = s[c];
+        for (int i = MAX_ORDER; i < frames; i++) {
+            int x = s[i * ch + c];
+            int e1 = x - x1;
+            int e2 = e1 - (x1 - x2);
+            int e3 = e2 - (x1 - 2 * x2 + x3);
+            int e4 = e3 - (x1 - 3 * x2 + 3 * x3 - x4);
+            error[0] += Math.abs(x);
+            error[1] += Math.abs(e1);
+            error[2] += Math.abs(e2);
+            error[3] += Math.abs(e3);
+            error[4] += Math.abs(e4);
+            x4 = x3;
+            x3 = x2;
+            x2 = x1;
+            x1 = x;
+        }
+        int best = 0;
+        for (int order = 1; order <= MAX_ORDER; order++) {
+            if (error[order] < error[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimates the Rice parameter from the mean residual, then keeps the cheapest of its neighbours.
+     */
+    private static int chooseRiceParameter(int[] residual, int from, int to) {
+        int n = to - from;
+        if (n <= 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            int r = residual[i];
+            sum += ((r << 1) ^ (r >> 31)) & 0xFFFFFFFFL;
+        }
+        int guess = Math.min(30, 64 - Long.numberOfLeadingZeros(sum / n));
+        int best = guess;
+        long bestCost = Long.MAX_VALUE;
+        for (int k = Math.max(0, guess - 1); k <= Math.min(30, guess + 1); k++) {
+            long cost = (long) n * (k + 1);
+            for (int i = from; i < to; i++) {
+                int r = residual[i];
+                long q = (((r << 1) ^ (r >> 31)) & 0xFFFFFFFFL) >>> k;
+                cost += q < ESCAPE ? q : ESCAPE + 32 - k - 1;
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    static void decodeBlock(byte[] payload, int length, int frames, int channels, int bits, int[] samples) throws IOException {
+        BitReader reader = new BitReader(payload, length);
+        int shift = 32 - bits;
+        for (int c = 0; c < channels; c++) {
+            int order = reader.read(3);
+            int k = reader.read(5);
+            if (order > MAX_ORDER || order > frames) {
+                throw new IOException("Corrupt JLA block");
+            }
+            for (int i = 0; i < order; i++) {
+                samples[i * channels + c] = (reader.read(bits) << shift) >> shift;
+            }
+            for (int i = order; i < frames; i++) {
+                int q = reader.ones(ESCAPE);
+                int u;
+                if (q >= ESCAPE) {
+                    u = reader.read(32);
+                } else {
+                    u = (q << k) | reader.read(k);
+                }
+                int r = (u >>> 1) ^ -(u & 1);
+                samples[i * channels + c] = r + predict(samples, c, channels, i, order);
+            }
+        }
+    }
+
+    static void toInts(byte[] data, int offset, int[] dst, int bits, boolean bigEndian, boolean unsigned) {
+        int bytes = bits / 8;
+        int bias = unsigned ? 1 << (bits - 1) : 0;
+        int shift = 32 - bits;
+        for (int i = 0, p = offset; i < dst.length; i++, p += bytes) {
+            int v = 0;
+            for (int b = 0; b < bytes; b++) {
+                int octet = data[bigEndian ? p + b : p + bytes - 1 - b] & 0xFF;
+                v = (v << 8) | octet;
+            }
+            dst[i] = ((v - bias) << shift) >> shift;
+        }
+    }
+
+    static void toBytes(int[] src, int count, byte[] data, int bits, boolean bigEndian, boolean unsigned) {
+        int bytes = bits / 8;
+        int bias = unsigned ? 1 << (bits - 1) : 0;
+        for (int i = 0, p = 0; i < count; i++, p += bytes) {
+            int v = src[i] + bias;
+            for (int b = 0; b < bytes; b++) {
+                data[bigEndian ? p + bytes - 1 - b : p + b] = (byte) (v >> (8 * b));
+            }
+        }
+    }
+
+    /**
+     * Streams decoded PCM bytes, one block at a time.
+     */
+    private static class BlockDecoder extends InputStream {
+
+        private final DataInputStream in;
+        private final int channels;
+        private final int bits;
+        private final boolean bigEndian;
+        private final boolean unsigned;
+        private byte[] payload = new byte[0];
+        private int[] samples = new int[0];
+        private byte[] pcm = new byte[0];
+        private int pcmLength;
+        private int pcmPos;
+        private boolean end;
+
+        BlockDecoder(DataInputStream in, int channels, int bits, boolean bigEndian, boolean unsigned) {
+            this.in = in;
+            this.channels = channels;
+            this.bits = bits;
+            this.bigEndian = bigEndian;
+            this.unsigned = unsigned;
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (end) {
+                return false;
+            }
+            int frames;
+            try {
+                frames = in.readInt();
+            } catch (EOFException ex) {
+                frames = 0;
+            }
+            if (frames <= 0) {
+                end = true;
+                return false;
+            }
+            int length = in.readInt();
+            if (payload.length < length) {
+                payload = new byte[length];
+            }
+            in.readFully(payload, 0, length);
+            int count = frames * channels;
+            if (samples.length < count) {
+                samples = new int[count];
+                pcm = new byte[count * (bits / 8)];
+            }
+            decodeBlock(payload, length, frames, channels, bits, samples);
+            toBytes(samples, count, pcm, bits, bigEndian, unsigned);
+            pcmLength = count * (bits / 8);
+            pcmPos = 0;
+            return true;
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pcmPos == pcmLength && !nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, pcmLength - pcmPos);
+            System.arraycopy(pcm, pcmPos, b, off, n);
+            pcmPos += n;
+            return n;
+        }
+
+        public int available() {
+            return pcmLength - pcmPos;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class BitWriter {
+
+        private byte[] buf;
+        private int pos;
+        private long acc;
+        private int nbits;
+
+        BitWriter(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void write(int value, int n) {
+            if (n == 0) {
+                return;
+            }
+            acc = (acc << n) | (value & ((1L << n) - 1));
+            nbits += n;
+            while (nbits >= 8) {
+                nbits -= 8;
+                if (pos == buf.length) {
+                    buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+                }
+                buf[pos++] = (byte) (acc >>> nbits);
+            }
+        }
+
+        void ones(int q) {
+            while (q > 0) {
+                int n = Math.min(q, 32);
+                write(-1, n);
+                q -= n;
+            }
+        }
+
+        void align() {
+            if (nbits > 0) {
+                write(0, 8 - nbits);
+            }
+        }
+
+        byte[] toByteArray() {
+            return java.util.Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class BitReader {
+
+        private final byte[] buf;
+        private final int length;
+        private int pos;
+        private long acc;
+        private int nbits;
+
+        BitReader(byte[] buf, int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+
+        int read(int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            while (nbits < n) {
+                if (pos == length) {
+                    throw new IOException("Truncated JLA block");
+                }
+                acc = (acc << 8) | (buf[pos++] & 0xFF);
+                nbits += 8;
+            }
+            nbits -= n;
+            return (int) ((acc >>> nbits) & ((1L << n) - 1));
+        }
+
+        /**
+         * Counts leading one bits, consuming the terminating zero unless max ones were read.
+         */
+        int ones(int max) throws IOException {
+            int q = 0;
+            while (q < max) {
+                if (nbits == 0) {
+                    if (pos == length) {
+                        throw new IOException("Truncated JLA block");
+                    }
+                    acc = buf[pos++] & 0xFF;
+                    nbits = 8;
+                }
+                // at most 8 unread bits are left in acc, count the ones at their top
+                int top = (int) ((acc & ((1L << nbits) - 1)) << (32 - nbits));
+                int run = Math.min(Integer.numberOfLeadingZeros(~top), Math.min(nbits, max - q));
+                q += run;
+                nbits -= run;
+                if (q < max && nbits > 0) {
+                    nbits--; // the terminating zero
+                    return q;
+                }
+            }
+            return q;
+        }
+    }
+}
@@ -9,9 +9,8 @@ import javax.swing.border.SoftBevelBorder;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.geom.Line2D;
 import java.io.File;
-import java.util.Vector;
+import java.io.IOException;
 
 /**
  * Capture/Playback sample. Record audio in different formats and then playback the recorded audio. The captured audio can be saved either as a WAVE, AU or
@@ -25,7 +24,7 @@ import java.util.Vector;
 public class MainController extends JPanel implements ActionListener {
 
     private static final long serialVersionUID = 1L;
-    byte[] audioBytes = null;
+    AudioStore audioStore = null;
     float[] audioData = null;
     final int BUFFER_SIZE = 16384;
     final FormatControlConf formatControls = new FormatControlConf();            // @jve:decl-index=0:
@@ -33,6 +32,7 @@ public class MainController extends JPanel implements ActionListener {
     final Player player = new Player(this);                    // @jve:decl-index=0:
     final WaveData waveData;
     AudioInputStream audioInputStream;                                        // @jve:decl-index=0:
+    private AudioInputStream storeView;
     SamplingGraph samplingGraph;
     final JButton playBtn;
     final JButton captureBtn;
@@ -41,11 +41,17 @@ public class MainController extends JPanel implements ActionListener {
     String errStr;
     double duration, seconds;
     File file;                                                    // @jve:decl-index=0:
-    final Vector<Line2D.Double> lines = new Vector<>();    // @jve:decl-index=0:
+    PeakPyramid peaks;
+    Spectrogram spectrogram;
+    SpectrogramGraph spectrogramGraph;
     final boolean isDrawingRequired;
     final boolean isSaveRequired;
     final JPanel innerPanel;
     String saveFileName = null;                                // @jve:decl-index=0:
+    File captureFile = null;
+    SaveTask saveTask;
+    LoadTask loadTask;
+    PeakCache peakCache = new PeakCache();
 
     /**
      * Instantiates a new j sound capture.
@@ -79,6 +85,7 @@ public class MainController extends JPanel implements ActionListener {
             SoftBevelBorder sbb = new SoftBevelBorder(SoftBevelBorder.LOWERED);
             samplingPanel.setBorder(new CompoundBorder(eb, sbb));
             samplingPanel.add(samplingGraph = new SamplingGraph(this));
+            samplingPanel.add(spectrogramGraph = new SpectrogramGraph(this), BorderLayout.SOUTH);
             innerPanel.add(samplingPanel);
         }
         // whole panel
@@ -89,14 +96,76 @@ public class MainController extends JPanel implements ActionListener {
     }
 
     public boolean isSoundDataAvailable() {
-        if (audioBytes != null)
-            return (audioBytes.length > 100);
+        if (audioStore != null)
+            return (audioStore.getLength() > 100);
+        else if (file != null)
+            return file.length() > 100 + WaveFileWriter.HEADER_SIZE;
         else
             return false;
     }
 
+    public AudioStore getAudioStore() {
+        return audioStore;
+    }
+
+    /**
+     * @return a copy of the take kept in memory, null if there is none or the take is a file
+     * @deprecated copies the whole take; read it in place through {@link #getAudioStore()}
+     */
+    @Deprecated
     public byte[] getAudioBytes() {
-        return audioBytes;
+        AudioStore store = audioStore;
+        if (store == null) {
+            return null;
+        }
+        store.retain();
+        try {
+            long frames = store.getFrameLength();
+            if (frames * store.getFormat().getFrameSize() > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Take too large for a byte array: " + frames + " frames");
+            }
+            byte[] bytes = new byte[(int) (frames * store.getFormat().getFrameSize())];
+            store.read(0, bytes, 0, (int) frames);
+            return bytes;
+        } finally {
+            store.release();
+        }
+    }
+
+    /**
+     * Replaces the take kept in memory and makes a view of it the stream played and shown. The previous take's view
+     * is closed, and its segments go back to the pool once the player cache and any running save are done with them.
+     */
+    void setAudioStore(AudioStore store) {
+        AudioStore previous = audioStore;
+        if (previous == store) {
+            return;
+        }
+        audioStore = store;
+        if (previous != null) {
+            player.clearCache();
+            closeStoreView();
+            previous.release();
+        }
+        if (store != null) {
+            storeView = store.getAudioInputStream();
+            audioInputStream = storeView;
+        }
+    }
+
+    private void closeStoreView() {
+        if (storeView == null) {
+            return;
+        }
+        if (audioInputStream == storeView) {
+            audioInputStream = null;
+        }
+        try {
+            storeView.close();
+        } catch (IOException ex) {
+            System.err.println("Closing the take's view: " + ex);
+        }
+        storeView = null;
     }
 
     public String getSaveFileName() {
@@ -108,8 +177,41 @@ public class MainController extends JPanel implements ActionListener {
         System.out.println("FileName Changed !!! " + saveFileName);
     }
 
+    public File getCaptureFile() {
+        return captureFile;
+    }
+
+    /**
+     * Streams the next recordings straight into the given WAV file instead of keeping them in memory.
+     *
+     * @param captureFile the target file, or null to record into memory
+     */
+    public void setCaptureFile(File captureFile) {
+        this.captureFile = captureFile;
+    }
+
+    public PeakCache getPeakCache() {
+        return peakCache;
+    }
+
+    /**
+     * Sets where the waveform peaks of opened and recorded files are kept for the next open, null to not keep them.
+     * By default they go next to each file.
+     */
+    public void setPeakCache(PeakCache peakCache) {
+        this.peakCache = peakCache;
+    }
+
     public float[] getAudioData() throws Exception {
-        if (audioData == null) {
+        if (audioData == null && audioStore != null) {
+            audioData = waveData.extractFloatDataFromAudioStore(audioStore);
+        } else if (audioData == null) {
+            // the waveform pass may have consumed the stream
+            if (file != null) {
+                createAudioInputStream(file, false);
+            } else if (audioInputStream.markSupported()) {
+                audioInputStream.reset();
+            }
             audioData = waveData.extractFloatDataFromAudioInputStream(audioInputStream);
         }
         return audioData;
@@ -166,7 +268,7 @@ public class MainController extends JPanel implements ActionListener {
     public void playCaptured() {
         player.start();
         if (isDrawingRequired)
-            samplingGraph.start();
+            samplingGraph.start(player.clock);
         captureBtn.setEnabled(false);
         pauseBtn.setEnabled(true);
         playBtn.setText("Stop");
@@ -182,10 +284,22 @@ public class MainController extends JPanel implements ActionListener {
     }
 
     public void startRecord() {
+        if (recorder.isOverdub() && isSoundDataAvailable()) {
+            // the current take plays under the new one and stays until the mix of both replaces it
+            try {
+                AudioFormat format = formatControls.getFormat();
+                recorder.setBacking(file != null ? PcmCache.forFile(file, format) : PcmCache.forStore(audioStore, format));
+            } catch (Exception ex) {
+                reportStatus("Unable to play the take under the recording: " + ex.getMessage());
+            }
+        }
+        cancelLoad();
         file = null;
+        peaks = null;
+        spectrogram = null;
         recorder.start();
         if (isDrawingRequired)
-            samplingGraph.start();
+            samplingGraph.start(recorder.clock);
         playBtn.setEnabled(false);
         pauseBtn.setEnabled(true);
         saveBtn.setEnabled(false);
@@ -193,7 +307,6 @@ public class MainController extends JPanel implements ActionListener {
     }
 
     public void stopRecording() {
-        lines.removeAllElements();
         recorder.stop();
         if (isDrawingRequired)
             samplingGraph.stop();
@@ -227,17 +340,54 @@ public class MainController extends JPanel implements ActionListener {
         pauseBtn.setText("Pause");
     }
 
+    /**
+     * Starts saving the current take in the background; while a save runs the Save button cancels it.
+     */
     public void getFileNameAndSaveFile() throws Exception {
+        if (saveTask != null) {
+            saveTask.cancel(true);
+            return;
+        }
         while (saveFileName == null) {
-            saveFileName = JOptionPane.showInputDialog(null, "Enter WAV File Name", "audiofilename");
+            saveFileName = JOptionPane.showInputDialog(null, "Enter WAV File Name (name.jla saves compressed)", "audiofilename");
         }
-        waveData.saveToFile(saveFileName, AudioFileFormat.Type.WAVE, audioInputStream);
-
+        String name = saveFileName;
+        AudioFileFormat.Type fileType = AudioFileFormat.Type.WAVE;
+        if (name.endsWith(".jla")) {
+            name = name.substring(0, name.length() - 4);
+            fileType = LosslessCodec.JLA;
+        }
+        final SaveTask task;
+        if (file != null) {
+            task = SaveTask.forFile(name, fileType, file);
+        } else if (audioStore != null) {
+            task = SaveTask.forStore(name, fileType, audioStore);
+        } else {
+            task = SaveTask.forStream(name, fileType, audioInputStream);
+        }
+        task.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                saveBtn.setText("Cancel " + evt.getNewValue() + "%");
+            } else if ("state".equals(evt.getPropertyName()) && evt.getNewValue() == SwingWorker.StateValue.DONE) {
+                saveTask = null;
+                saveBtn.setText("Save ");
+                try {
+                    File saved = task.getResult();
+                    reportStatus(saved == null ? "Save cancelled" : "Saved " + saved.getAbsolutePath());
+                } catch (Exception ex) {
+                    reportStatus("Error in saving file " + ex.getMessage());
+                }
+            }
+        });
+        saveTask = task;
+        saveBtn.setText("Cancel");
+        task.execute();
     }
 
 
     /**
-     * Creates the audio input stream.
+     * Creates the audio input stream. Only the header is read here, so the file can be played right away; the
+     * waveform is read in the background by a {@link LoadTask}, which opening another file cancels.
      *
      * @param file             the file
      * @param updateComponents the update components
@@ -245,9 +395,13 @@ public class MainController extends JPanel implements ActionListener {
     public void createAudioInputStream(File file, boolean updateComponents) {
         if (file != null && file.isFile()) {
             try {
+                if (updateComponents) {
+                    cancelLoad();
+                }
                 this.file = file;
                 errStr = null;
-                audioInputStream = AudioSystem.getAudioInputStream(file);
+                audioInputStream = LosslessCodec.getAudioInputStream(file);
+                setAudioStore(null);
                 playBtn.setEnabled(true);
                 // fileName = file.getName();
                 long milliseconds = (long) ((audioInputStream.getFrameLength() * 1000) / audioInputStream.getFormat().getFrameRate());
@@ -267,6 +421,31 @@ public class MainController extends JPanel implements ActionListener {
         }
     }
 
+    /**
+     * Stops reading the waveform of the last opened file, if that is still going on.
+     */
+    void cancelLoad() {
+        if (loadTask != null) {
+            loadTask.cancel(true);
+            loadTask = null;
+        }
+        if (spectrogram != null) {
+            spectrogram.cancel();
+        }
+    }
+
+    /**
+     * Stops capture and playback, cancels a running load and lets go of the take and of the metrics MBeans, which
+     * would otherwise keep this controller reachable from the platform MBean server. Saves already running finish
+     * on their own. Call when the controller is no longer used.
+     */
+    public void dispose() {
+        recorder.dispose();
+        player.dispose();
+        cancelLoad();
+        setAudioStore(null);
+    }
+
     /**
      * Report status.
      *
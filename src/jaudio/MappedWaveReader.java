@@ -0,0 +1,281 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Random access to the frames of a WAV file through memory mapped windows.
+ * <p>
+ * The RIFF chunks are parsed and the data chunk is mapped once when the reader is opened, in frame
+ * aligned segments of about 1 GB, so files larger than 2 GB work and the heap cost does not depend
+ * on the file size. A data chunk whose declared length runs past the end of the file (an
+ * interrupted {@link WaveFileWriter} capture) is clamped to the bytes actually present. Cue points
+ * with a length (an adtl ltxt entry) are read as {@link #getRegions() regions}. Reads may run
+ * concurrently, e.g. one window per worker thread: the mapping never changes after opening, and
+ * each thread decodes through a scratch array of its own.
+ */
+public class MappedWaveReader implements Closeable {
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final long SEGMENT_TARGET = 1L << 30;
+    private static final int MAX_LIST_BYTES = 1 << 20;
+    private static final int SCRATCH_BYTES = 64 << 10;
+
+    private final File file;
+    private final FileChannel channel;
+    private final AudioFormat format;
+    private final PcmDecoder decoder;
+    private final int frameSize;
+    private final long dataOffset;
+    private final long dataLength;
+    private final long segmentBytes;
+    private final MappedByteBuffer[] segments;
+    private final long[] regions;
+    private final ThreadLocal<byte[]> scratch;
+
+    public MappedWaveReader(File file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        AudioFormat dataFormat = null;
+        long offset = 0;
+        long length = 0;
+        ByteBuffer cue = null;
+        ByteBuffer adtl = null;
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(buf, 0);
+            if (buf.getInt(0) != 0x46464952 || buf.getInt(8) != 0x45564157) {
+                throw new IOException("Not a RIFF/WAVE file: " + file);
+            }
+            AudioFormat fmt = null;
+            long pos = 12;
+            long size = channel.size();
+            ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            // the data chunk may be followed by cue and LIST chunks, so the whole file is scanned
+            while (pos + 8 <= size) {
+                chunk.clear().limit(8);
+                readFully(chunk, pos);
+                int id = chunk.getInt(0);
+                long chunkLength = chunk.getInt(4) & 0xFFFFFFFFL;
+                if (id == 0x20746d66) { // "fmt "
+                    chunk.clear().limit((int) Math.min(40, chunkLength));
+                    readFully(chunk, pos + 8);
+                    fmt = parseFormat(chunk);
+                } else if (id == 0x61746164 && dataFormat == null) { // "data"
+                    if (fmt == null) {
+                        throw new IOException("data chunk before fmt chunk in " + file);
+                    }
+                    dataFormat = fmt;
+                    offset = pos + 8;
+                    length = Math.min(chunkLength, size - offset);
+                } else if (id == 0x20657563 && chunkLength <= MAX_LIST_BYTES && pos + 8 + chunkLength <= size) { // "cue "
+                    cue = readChunk(pos + 8, (int) chunkLength);
+                } else if (id == 0x5453494c && chunkLength >= 4 && chunkLength <= MAX_LIST_BYTES && pos + 8 + chunkLength <= size) { // "LIST"
+                    ByteBuffer list = readChunk(pos + 8, (int) chunkLength);
+                    if (list.getInt(0) == 0x6c746461) { // "adtl"
+                        adtl = list;
+                    }
+                }
+                pos += 8 + chunkLength + (chunkLength & 1);
+            }
+            if (dataFormat == null) {
+                throw new IOException("No data chunk in " + file);
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        format = dataFormat;
+        frameSize = dataFormat.getFrameSize();
+        dataOffset = offset;
+        dataLength = length / frameSize * frameSize;
+        decoder = new PcmDecoder(format, true);
+        segmentBytes = Math.max(1, SEGMENT_TARGET / frameSize) * frameSize;
+        segments = new MappedByteBuffer[(int) ((dataLength + segmentBytes - 1) / segmentBytes)];
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * segmentBytes;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start, Math.min(segmentBytes, dataLength - start));
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        regions = parseRegions(cue, adtl);
+        int scratchBytes = Math.max(1, SCRATCH_BYTES / frameSize) * frameSize;
+        scratch = ThreadLocal.withInitial(() -> new byte[scratchBytes]);
+    }
+
+    private ByteBuffer readChunk(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(buf, position);
+        return buf.flip();
+    }
+
+    /**
+     * Pairs the cue points with the sample lengths of their ltxt entries; points without a length are skipped.
+     */
+    private static long[] parseRegions(ByteBuffer cue, ByteBuffer adtl) {
+        if (cue == null || adtl == null || cue.limit() < 4) {
+            return new long[0];
+        }
+        int points = (int) Math.min(cue.getInt(0) & 0xFFFFFFFFL, (cue.limit() - 4) / 24);
+        long[] regions = new long[2 * points];
+        int count = 0;
+        for (int i = 0; i < points; i++) {
+            int id = cue.getInt(4 + 24 * i);
+            long start = cue.getInt(4 + 24 * i + 20) & 0xFFFFFFFFL;
+            for (int p = 4; p + 8 <= adtl.limit(); ) {
+                int size = adtl.getInt(p + 4);
+                if (size < 0 || p + 8 + (long) size > adtl.limit()) {
+                    break;
+                }
+                if (adtl.getInt(p) == 0x7478746c && size >= 8 && adtl.getInt(p + 8) == id) { // "ltxt"
+                    regions[count++] = start;
+                    regions[count++] = start + (adtl.getInt(p + 12) & 0xFFFFFFFFL);
+                    break;
+                }
+                p += 8 + size + (size & 1);
+            }
+        }
+        return count == regions.length ? regions : Arrays.copyOf(regions, count);
+    }
+
+    /**
+     * @throws IOException for a malformed chunk or a layout the decoder cannot read, so callers fall back to
+     *                     the audio system
+     */
+    private static AudioFormat parseFormat(ByteBuffer fmt) throws IOException {
+        if (fmt.limit() < 16) {
+            throw new IOException("fmt chunk too short: " + fmt.limit() + " bytes");
+        }
+        int tag = fmt.getShort(0) & 0xFFFF;
+        int channels = fmt.getShort(2);
+        int rate = fmt.getInt(4);
+        int blockAlign = fmt.getShort(12);
+        int bits = fmt.getShort(14);
+        if (tag == WAVE_FORMAT_EXTENSIBLE && fmt.limit() >= 26) {
+            // the sub format GUID starts with the plain format tag
+            tag = fmt.getShort(24) & 0xFFFF;
+        }
+        AudioFormat.Encoding encoding;
+        if (tag == WAVE_FORMAT_IEEE_FLOAT) {
+            encoding = AudioFormat.Encoding.PCM_FLOAT;
+        } else if (tag == WAVE_FORMAT_PCM) {
+            encoding = bits <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+        } else {
+            throw new IOException("Unsupported WAV format tag: " + tag);
+        }
+        boolean supported = tag == WAVE_FORMAT_IEEE_FLOAT ? bits == 32 || bits == 64 : bits == 8 || bits == 16 || bits == 24 || bits == 32;
+        if (!supported) {
+            throw new IOException("Unsupported WAV sample size: " + bits + " bits");
+        }
+        // samples must be packed, padded containers would need wValidBitsPerSample
+        if (channels <= 0 || rate <= 0 || blockAlign != channels * (bits / 8)) {
+            throw new IOException("Unsupported WAV layout: " + channels + " channels, " + rate + " Hz, block align " + blockAlign);
+        }
+        return new AudioFormat(encoding, rate, bits, channels, blockAlign, rate, false);
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file: " + file);
+            }
+            position += n;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public long getFrameLength() {
+        return dataLength / frameSize;
+    }
+
+    public double getDurationSec() {
+        return getFrameLength() / format.getFrameRate();
+    }
+
+    /**
+     * @return the regions marked in the file as start and end frame pairs, in cue order; empty if none
+     */
+    public long[] getRegions() {
+        return regions;
+    }
+
+    /**
+     * Byte offset of the first frame within the file.
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Decodes up to count frames starting at startFrame into dst as interleaved samples normalized to [-1, 1].
+     *
+     * @return the number of frames read, 0 at the end of the data
+     */
+    public int readFrames(long startFrame, int count, float[] dst) throws IOException {
+        return readFrames(startFrame, count, dst, 0);
+    }
+
+    public int readFrames(long startFrame, int count, float[] dst, int dstOffset) throws IOException {
+        count = Math.min(count, (dst.length - dstOffset) / format.getChannels());
+        long pos = startFrame * frameSize;
+        long end = Math.min(dataLength, pos + (long) count * frameSize);
+        // the decoder keeps no state for byte arrays, the scratch array is this thread's
+        byte[] bytes = scratch.get();
+        int frames = 0;
+        while (pos < end) {
+            int index = (int) (pos / segmentBytes);
+            int within = (int) (pos - index * segmentBytes);
+            int n = (int) Math.min(Math.min(segments[index].capacity() - within, end - pos), bytes.length);
+            segments[index].get(within, bytes, 0, n);
+            dstOffset += decoder.decode(bytes, 0, n, dst, dstOffset);
+            frames += n / frameSize;
+            pos += n;
+        }
+        return frames;
+    }
+
+    /**
+     * Copies up to count raw frames starting at startFrame into dst.
+     *
+     * @return the number of frames copied, 0 at the end of the data
+     */
+    public int readBytes(long startFrame, int count, byte[] dst, int dstOffset) throws IOException {
+        long pos = startFrame * frameSize;
+        long end = Math.min(dataLength, pos + (long) count * frameSize);
+        int copied = 0;
+        while (pos < end) {
+            int index = (int) (pos / segmentBytes);
+            int within = (int) (pos - index * segmentBytes);
+            int n = (int) Math.min(segments[index].capacity() - within, end - pos);
+            segments[index].get(within, dst, dstOffset + copied, n);
+            copied += n;
+            pos += n;
+        }
+        return copied / frameSize;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+}
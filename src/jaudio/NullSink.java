@@ -0,0 +1,133 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A playback sink that discards what it is given and counts it.
+ * <p>
+ * Unpaced by default, so frames are "played" the moment they are written and a pipeline runs as fast as the
+ * CPU allows. With a speed set, the buffer drains at that multiple of real time, write blocks while it is
+ * full, and time spent with an empty buffer is lost like on a real line, so underruns behave the same.
+ * {@link #setJitter} adds random stalls to write, like a writer thread that the scheduler or driver holds up.
+ */
+public class NullSink extends PacedEndpoint implements AudioSink {
+
+    private long written;
+    private long played;
+    private long lastClock;
+    private long flushes;
+    private final Random random = new Random(7);
+    private volatile double jitterMillis;
+
+    public NullSink(AudioFormat format, int bufferSize) {
+        super(format, bufferSize);
+        setSpeed(0);
+    }
+
+    public double getJitter() {
+        return jitterMillis;
+    }
+
+    /**
+     * Makes each write of a paced sink stall first, for up to maxMillis of the sink's clock. Stalls are mostly
+     * short with the odd long one, the fourth power of a uniform draw, so the mean is a fifth of the maximum.
+     */
+    public void setJitter(double maxMillis) {
+        this.jitterMillis = maxMillis;
+    }
+
+    /**
+     * Plays out what is queued up to the current clock.
+     */
+    private synchronized void update() {
+        if (!isPaced()) {
+            played = written;
+            return;
+        }
+        long clock = clockFrames();
+        played = Math.min(written, played + (clock - lastClock));
+        lastClock = clock;
+    }
+
+    public synchronized long getLongFramePosition() {
+        update();
+        return played;
+    }
+
+    /**
+     * @return frames accepted by write, played or not
+     */
+    public synchronized long getFramesWritten() {
+        return written;
+    }
+
+    public int available() {
+        synchronized (this) {
+            update();
+            return bufferSize - (int) (written - played) * frameSize;
+        }
+    }
+
+    public int write(byte[] b, int offset, int length) {
+        double jitter = jitterMillis;
+        if (jitter > 0 && isPaced()) {
+            double r;
+            synchronized (random) {
+                r = random.nextDouble();
+            }
+            LockSupport.parkNanos(this, (long) (r * r * r * r * jitter * 1e6 / getSpeed()));
+        }
+        int total = 0;
+        long flushed = flushCount();
+        while (total < length / frameSize * frameSize && isOpen() && flushed == flushCount()) {
+            int n;
+            synchronized (this) {
+                update();
+                n = Math.min(length / frameSize * frameSize - total, bufferSize - (int) (written - played) * frameSize);
+                written += n / frameSize;
+            }
+            total += n;
+            if (n == 0) {
+                // full: a running sink drains, a stopped one waits for start like a real line
+                waitFrames(Math.max(1, (length - total) / frameSize));
+            }
+        }
+        return total;
+    }
+
+    private synchronized long flushCount() {
+        return flushes;
+    }
+
+    public synchronized void flush() {
+        update();
+        written = played;
+        flushes++;
+    }
+
+    public void drain() {
+        long pending;
+        while ((pending = pending()) > 0 && isRunning()) {
+            waitFrames(pending);
+        }
+    }
+
+    private synchronized long pending() {
+        update();
+        return written - played;
+    }
+
+    public synchronized void start() {
+        update();
+        super.start();
+        lastClock = clockFrames();
+    }
+
+    public synchronized void stop() {
+        update();
+        super.stop();
+        lastClock = clockFrames();
+    }
+}
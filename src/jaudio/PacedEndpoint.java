@@ -0,0 +1,128 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base of the stand-in endpoints: a clock that runs at speed times the frame rate while started.
+ * <p>
+ * A speed of 1 behaves like hardware, 100 runs a hundred times faster than real time and 0 removes pacing
+ * altogether, so frames move as fast as the caller can take them.
+ */
+abstract class PacedEndpoint implements AudioEndpoint {
+
+    static final long MAX_WAIT_NANOS = 5_000_000L;
+
+    final AudioFormat format;
+    final int frameSize;
+    final int bufferSize;
+    private final List<StateListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile double speed = 1;
+    private volatile boolean running;
+    private volatile boolean open = true;
+    private long anchorFrames;
+    private long anchorNanos;
+
+    PacedEndpoint(AudioFormat format, int bufferSize) {
+        this.format = format;
+        this.frameSize = format.getFrameSize();
+        this.bufferSize = Math.max(frameSize, bufferSize / frameSize * frameSize);
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @param speed multiple of real time, or 0 for as fast as possible
+     */
+    public synchronized void setSpeed(double speed) {
+        anchorFrames = clockFrames();
+        anchorNanos = System.nanoTime();
+        this.speed = speed;
+    }
+
+    boolean isPaced() {
+        return speed > 0;
+    }
+
+    /**
+     * @return frames the clock has advanced while running
+     */
+    synchronized long clockFrames() {
+        if (!running || speed <= 0) {
+            return anchorFrames;
+        }
+        return anchorFrames + (long) ((System.nanoTime() - anchorNanos) * (double) format.getFrameRate() * speed / 1e9);
+    }
+
+    /**
+     * Sleeps about as long as the clock needs to advance the given number of frames, but never long enough to
+     * miss a stop or close by much.
+     */
+    void waitFrames(long frames) {
+        double rate = format.getFrameRate() * Math.max(speed, 1e-3);
+        long nanos = (long) (Math.max(1, frames) * 1e9 / rate);
+        LockSupport.parkNanos(this, Math.max(50_000L, Math.min(nanos, MAX_WAIT_NANOS)));
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (running || !open) {
+                return;
+            }
+            anchorNanos = System.nanoTime();
+            running = true;
+        }
+        fire(true);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            anchorFrames = clockFrames();
+            running = false;
+        }
+        fire(false);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        stop();
+        open = false;
+    }
+
+    public void addStateListener(StateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeStateListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fire(boolean started) {
+        long frame = getLongFramePosition();
+        for (StateListener listener : listeners) {
+            listener.stateChanged(started, frame);
+        }
+    }
+}
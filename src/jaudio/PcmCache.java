@@ -0,0 +1,144 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Random access PCM frames already converted to the playback format.
+ * <p>
+ * A WAV file that is already in the playback format is served straight from a
+ * {@link MappedWaveReader}, a captured {@link AudioStore} in the playback format is read in place. Anything
+ * else is converted once, through {@link Resampler#convert}, into fixed size in-memory segments. Either way
+ * seeking is O(1) and replaying does not reopen or convert anything.
+ */
+public class PcmCache implements Closeable {
+
+    static final int SEGMENT_BYTES = 1 << 20;
+
+    private final AudioFormat format;
+    private final int frameSize;
+    private final MappedWaveReader reader;
+    private final byte[][] segments;
+    private final int segmentBytes;
+    private final long frameLength;
+    private AudioStore store;
+
+    private PcmCache(AudioFormat format, MappedWaveReader reader, byte[][] segments, int segmentBytes, long frameLength) {
+        this.format = format;
+        this.frameSize = format.getFrameSize();
+        this.reader = reader;
+        this.segments = segments;
+        this.segmentBytes = segmentBytes;
+        this.frameLength = frameLength;
+    }
+
+    /**
+     * Caches a file for playback in the given format.
+     */
+    public static PcmCache forFile(File file, AudioFormat format) throws Exception {
+        try {
+            MappedWaveReader reader = new MappedWaveReader(file);
+            if (reader.getFormat().matches(format)) {
+                return new PcmCache(format, reader, null, 0, reader.getFrameLength());
+            }
+            reader.close();
+        } catch (IOException ex) {
+            // not a plain PCM wave file, convert it below
+        }
+        try (AudioInputStream stream = LosslessCodec.getAudioInputStream(file)) {
+            return convert(stream, format);
+        }
+    }
+
+    /**
+     * Caches a captured take for playback in the given format. If the formats match the store's segments are read in
+     * place, holding a reference to the store until the cache is closed.
+     */
+    public static PcmCache forStore(AudioStore store, AudioFormat format) throws Exception {
+        if (store.getFormat().matches(format)) {
+            PcmCache cache = new PcmCache(format, null, store.retain().segments(), store.getSegmentBytes(), store.getFrameLength());
+            cache.store = store;
+            return cache;
+        }
+        try (AudioInputStream stream = store.getAudioInputStream()) {
+            return convert(stream, format);
+        }
+    }
+
+    /**
+     * Converts the remaining frames of a stream once into in-memory segments.
+     */
+    public static PcmCache convert(AudioInputStream stream, AudioFormat format) throws Exception {
+        AudioInputStream converted = Resampler.convert(stream, format);
+        int frameSize = format.getFrameSize();
+        int segmentBytes = Math.max(1, SEGMENT_BYTES / frameSize) * frameSize;
+        List<byte[]> segments = new ArrayList<>();
+        long total = 0;
+        byte[] segment = new byte[segmentBytes];
+        int fill = 0;
+        int numBytesRead;
+        while ((numBytesRead = converted.read(segment, fill, segmentBytes - fill)) != -1) {
+            fill += numBytesRead;
+            if (fill == segmentBytes) {
+                segments.add(segment);
+                total += fill;
+                segment = new byte[segmentBytes];
+                fill = 0;
+            }
+        }
+        if (fill > 0) {
+            segments.add(segment);
+            total += fill;
+        }
+        return new PcmCache(format, null, segments.toArray(new byte[0][]), segmentBytes, total / frameSize);
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Copies up to frames frames starting at frame into dst.
+     *
+     * @return the number of frames copied, 0 at the end
+     */
+    public int read(long frame, byte[] dst, int offset, int frames) throws IOException {
+        frames = (int) Math.max(0, Math.min(frames, frameLength - frame));
+        if (frames == 0) {
+            return 0;
+        }
+        if (reader != null) {
+            return reader.readBytes(frame, frames, dst, offset);
+        }
+        long pos = frame * frameSize;
+        long end = pos + (long) frames * frameSize;
+        while (pos < end) {
+            int index = (int) (pos / segmentBytes);
+            int within = (int) (pos - (long) index * segmentBytes);
+            int n = (int) Math.min(segmentBytes - within, end - pos);
+            System.arraycopy(segments[index], within, dst, offset, n);
+            offset += n;
+            pos += n;
+        }
+        return frames;
+    }
+
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+        if (store != null) {
+            store.release();
+            store = null;
+        }
+    }
+}
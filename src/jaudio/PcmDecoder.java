@@ -0,0 +1,182 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Decodes interleaved PCM bytes into caller supplied float buffers without allocating.
+ * <p>
+ * Handles 8/16/24/32 bit signed or unsigned integer PCM and 32/64 bit float PCM in either
+ * byte order. Wide samples are read straight from the byte array through array view VarHandles,
+ * so no buffer is wrapped per call and the loops stay simple enough for the JIT to unroll.
+ * Samples are either left in their integer range (the historical WaveData behavior) or
+ * normalized to [-1, 1]. Decoding byte arrays keeps no state, so one instance may serve many
+ * threads; the ByteBuffer path keeps a small scratch buffer and is not thread safe.
+ */
+public class PcmDecoder {
+
+    private static final int SCRATCH_SAMPLES = 4096;
+    private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle FLOAT_LE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle FLOAT_BE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle DOUBLE_LE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DOUBLE_BE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+
+    private final AudioFormat format;
+    private final int bytesPerSample;
+    private final boolean isFloat;
+    private final boolean unsigned;
+    private final boolean bigEndian;
+    private final boolean normalize;
+    private final float scale;
+    private float[] scratch;
+    private byte[] scratchBytes;
+
+    public PcmDecoder(AudioFormat format, boolean normalize) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        isFloat = AudioFormat.Encoding.PCM_FLOAT.equals(encoding);
+        unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding);
+        if (!isFloat && !unsigned && !AudioFormat.Encoding.PCM_SIGNED.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+        if (isFloat ? (bits != 32 && bits != 64) : (bits != 8 && bits != 16 && bits != 24 && bits != 32)) {
+            throw new IllegalArgumentException("Unsupported sample size: " + bits);
+        }
+        this.format = format;
+        this.bytesPerSample = bits / 8;
+        this.bigEndian = format.isBigEndian();
+        this.normalize = normalize;
+        this.scale = (normalize && !isFloat) ? (float) (1.0 / (1L << (bits - 1))) : 1f;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public int getBytesPerSample() {
+        return bytesPerSample;
+    }
+
+    public boolean isNormalized() {
+        return normalize;
+    }
+
+    /**
+     * Decodes the whole samples contained in src[offset, offset + length).
+     *
+     * @return the number of samples written to dst
+     */
+    public int decode(byte[] src, int offset, int length, float[] dst, int dstOffset) {
+        int samples = length / bytesPerSample;
+        decodeSamples(src, offset, samples, dst, dstOffset);
+        return samples;
+    }
+
+    /**
+     * Decodes as many whole samples as fit from src into dst, advancing both positions. Buffers without an
+     * accessible array go through a scratch buffer, allocated on first use.
+     *
+     * @return the number of samples written
+     */
+    public int decode(ByteBuffer src, FloatBuffer dst) {
+        int samples = Math.min(src.remaining() / bytesPerSample, dst.remaining());
+        if (src.hasArray() && dst.hasArray()) {
+            decodeSamples(src.array(), src.arrayOffset() + src.position(), samples, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + samples);
+        } else {
+            if (scratch == null) {
+                scratch = new float[SCRATCH_SAMPLES];
+                scratchBytes = new byte[SCRATCH_SAMPLES * bytesPerSample];
+            }
+            for (int done = 0; done < samples; ) {
+                int n = Math.min(SCRATCH_SAMPLES, samples - done);
+                src.get(src.position() + done * bytesPerSample, scratchBytes, 0, n * bytesPerSample);
+                decodeSamples(scratchBytes, 0, n, scratch, 0);
+                dst.put(scratch, 0, n);
+                done += n;
+            }
+        }
+        src.position(src.position() + samples * bytesPerSample);
+        return samples;
+    }
+
+    /**
+     * @param base index of the first sample in src
+     */
+    private void decodeSamples(byte[] src, int base, int samples, float[] dst, int off) {
+        float scale = this.scale;
+        switch (bytesPerSample) {
+            case 1: {
+                if (unsigned) {
+                    for (int i = 0; i < samples; i++) {
+                        dst[off + i] = ((src[base + i] & 0xFF) - 128) * scale;
+                    }
+                } else {
+                    for (int i = 0; i < samples; i++) {
+                        dst[off + i] = src[base + i] * scale;
+                    }
+                }
+                break;
+            }
+            case 2: {
+                int flip = unsigned ? 0x8000 : 0;
+                if (bigEndian) {
+                    for (int i = 0, p = base; i < samples; i++, p += 2) {
+                        dst[off + i] = (short) ((short) SHORT_BE.get(src, p) ^ flip) * scale;
+                    }
+                } else {
+                    for (int i = 0, p = base; i < samples; i++, p += 2) {
+                        dst[off + i] = (short) ((short) SHORT_LE.get(src, p) ^ flip) * scale;
+                    }
+                }
+                break;
+            }
+            case 3: {
+                int flip = unsigned ? 0x800000 : 0;
+                int hi = bigEndian ? 0 : 2;
+                int lo = bigEndian ? 2 : 0;
+                for (int i = 0, p = base; i < samples; i++, p += 3) {
+                    int v = (src[p + hi] & 0xFF) << 16 | (src[p + 1] & 0xFF) << 8 | (src[p + lo] & 0xFF);
+                    // flip the offset binary sign, then sign extend from bit 23
+                    dst[off + i] = (((v ^ flip) << 8) >> 8) * scale;
+                }
+                break;
+            }
+            case 4: {
+                if (isFloat) {
+                    for (int i = 0, p = base; i < samples; i++, p += 4) {
+                        dst[off + i] = bigEndian ? (float) FLOAT_BE.get(src, p) : (float) FLOAT_LE.get(src, p);
+                    }
+                } else {
+                    int flip = unsigned ? 0x80000000 : 0;
+                    if (bigEndian) {
+                        for (int i = 0, p = base; i < samples; i++, p += 4) {
+                            dst[off + i] = ((int) INT_BE.get(src, p) ^ flip) * scale;
+                        }
+                    } else {
+                        for (int i = 0, p = base; i < samples; i++, p += 4) {
+                            dst[off + i] = ((int) INT_LE.get(src, p) ^ flip) * scale;
+                        }
+                    }
+                }
+                break;
+            }
+            case 8: {
+                for (int i = 0, p = base; i < samples; i++, p += 8) {
+                    dst[off + i] = (float) (bigEndian ? (double) DOUBLE_BE.get(src, p) : (double) DOUBLE_LE.get(src, p));
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unsupported sample size: " + bytesPerSample);
+        }
+    }
+}
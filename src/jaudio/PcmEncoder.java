@@ -0,0 +1,123 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes normalized float samples into interleaved PCM bytes, the inverse of a normalizing {@link PcmDecoder}.
+ * <p>
+ * Handles the same 8/16/24/32 bit signed or unsigned integer and 32/64 bit float PCM formats. Integer output
+ * is rounded and clamped to full scale. Wide samples are written straight into the byte array through array view
+ * VarHandles, so nothing is allocated per call.
+ */
+public class PcmEncoder {
+
+    private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle FLOAT_LE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle FLOAT_BE = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle DOUBLE_LE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DOUBLE_BE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.BIG_ENDIAN);
+
+    private final AudioFormat format;
+    private final int bytesPerSample;
+    private final boolean isFloat;
+    private final boolean unsigned;
+    private final boolean bigEndian;
+    private final float scale;
+    private final float max;
+
+    public PcmEncoder(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        isFloat = AudioFormat.Encoding.PCM_FLOAT.equals(encoding);
+        unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding);
+        if (!isFloat && !unsigned && !AudioFormat.Encoding.PCM_SIGNED.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+        if (isFloat ? (bits != 32 && bits != 64) : (bits != 8 && bits != 16 && bits != 24 && bits != 32)) {
+            throw new IllegalArgumentException("Unsupported sample size: " + bits);
+        }
+        this.format = format;
+        this.bytesPerSample = bits / 8;
+        this.bigEndian = format.isBigEndian();
+        this.scale = isFloat ? 1f : (float) (1L << (bits - 1));
+        this.max = isFloat ? Float.MAX_VALUE : (float) ((1L << (bits - 1)) - 1);
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public int getBytesPerSample() {
+        return bytesPerSample;
+    }
+
+    /**
+     * Encodes src[offset, offset + samples) into dst starting at dstOffset.
+     *
+     * @return the number of bytes written
+     */
+    public int encode(float[] src, int offset, int samples, byte[] dst, int dstOffset) {
+        float scale = this.scale;
+        float max = this.max;
+        float min = isFloat ? -Float.MAX_VALUE : -scale;
+        switch (bytesPerSample) {
+            case 1: {
+                int bias = unsigned ? 128 : 0;
+                for (int i = 0; i < samples; i++) {
+                    dst[dstOffset + i] = (byte) (Math.round(Math.max(min, Math.min(max, src[offset + i] * scale))) + bias);
+                }
+                break;
+            }
+            case 2: {
+                VarHandle handle = bigEndian ? SHORT_BE : SHORT_LE;
+                int flip = unsigned ? 0x8000 : 0;
+                for (int i = 0, p = dstOffset; i < samples; i++, p += 2) {
+                    handle.set(dst, p, (short) (Math.round(Math.max(min, Math.min(max, src[offset + i] * scale))) ^ flip));
+                }
+                break;
+            }
+            case 3: {
+                int flip = unsigned ? 0x800000 : 0;
+                for (int i = 0, p = dstOffset; i < samples; i++, p += 3) {
+                    int v = Math.round(Math.max(min, Math.min(max, src[offset + i] * scale))) ^ flip;
+                    dst[p + (bigEndian ? 2 : 0)] = (byte) v;
+                    dst[p + 1] = (byte) (v >> 8);
+                    dst[p + (bigEndian ? 0 : 2)] = (byte) (v >> 16);
+                }
+                break;
+            }
+            case 4: {
+                if (isFloat) {
+                    VarHandle handle = bigEndian ? FLOAT_BE : FLOAT_LE;
+                    for (int i = 0, p = dstOffset; i < samples; i++, p += 4) {
+                        handle.set(dst, p, src[offset + i]);
+                    }
+                } else {
+                    VarHandle handle = bigEndian ? INT_BE : INT_LE;
+                    int flip = unsigned ? 0x80000000 : 0;
+                    for (int i = 0, p = dstOffset; i < samples; i++, p += 4) {
+                        // through double, a float cannot hold 2^31 - 1
+                        handle.set(dst, p, (int) Math.max(-2147483648.0, Math.min(2147483647.0, Math.rint(src[offset + i] * 2147483648.0))) ^ flip);
+                    }
+                }
+                break;
+            }
+            case 8: {
+                VarHandle handle = bigEndian ? DOUBLE_BE : DOUBLE_LE;
+                for (int i = 0, p = dstOffset; i < samples; i++, p += 8) {
+                    handle.set(dst, p, (double) src[offset + i]);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unsupported sample size: " + bytesPerSample);
+        }
+        return samples * bytesPerSample;
+    }
+}
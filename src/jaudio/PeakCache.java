@@ -0,0 +1,218 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the peak pyramids of audio files in compact sidecar files, so a file opened again draws its waveform
+ * without reading the audio.
+ * <p>
+ * A sidecar holds the level 0 buckets of a {@link PeakPyramid} as 16 bit min, max and RMS values, about 6 bytes
+ * per {@link PeakPyramid#BASE_FRAMES} frames; the levels above are rebuilt on load. It is stored next to the
+ * audio as name.wav.peaks, or in a cache directory kept under a size limit by deleting the least recently used
+ * sidecars. A sidecar is only used while the audio file has the size and modification time it was made for and
+ * the first {@link #HEADER_BYTES} of the file still hash to the same CRC, so an edited or replaced file is read
+ * again. Sidecars are written to a temporary file and moved into place, so a reader never sees a partial one.
+ * Files of up to {@link PeakPyramid#DETAIL_FRAMES} frames get no sidecar: they are read again in no time, and
+ * only then does their pyramid keep the per frame detail drawn when zoomed in.
+ */
+public class PeakCache {
+
+    public static final String EXTENSION = ".peaks";
+    static final int MAGIC = 0x4B45504A; // "JPEK" little-endian
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 4096;
+    static final int SIDECAR_HEADER = 44;
+
+    private final File directory;
+    private final long maxBytes;
+
+    /**
+     * Stores sidecars next to the audio files.
+     */
+    public PeakCache() {
+        this(null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Stores sidecars in a cache directory.
+     *
+     * @param maxBytes total size of the sidecars kept in the directory
+     */
+    public PeakCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return where the sidecar of the given audio file goes
+     */
+    public File sidecarFor(File audio) {
+        if (directory == null) {
+            return new File(audio.getPath() + EXTENSION);
+        }
+        String path = audio.getAbsolutePath();
+        String key = UUID.nameUUIDFromBytes(path.getBytes(StandardCharsets.UTF_8)).toString();
+        return new File(directory, key + "-" + audio.getName() + EXTENSION);
+    }
+
+    /**
+     * Reads the pyramid of an audio file from its sidecar.
+     *
+     * @param format the format of the audio, from its header
+     * @return the pyramid, or null if there is no sidecar or it does not match the file any more
+     */
+    public PeakPyramid load(File audio, AudioFormat format) {
+        File sidecar = sidecarFor(audio);
+        if (!sidecar.isFile()) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(SIDECAR_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(in, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getLong(8) != audio.length()
+                    || header.getLong(16) != audio.lastModified() || header.getLong(24) != headerCrc(audio)) {
+                return null;
+            }
+            long frames = header.getLong(32);
+            int buckets = header.getInt(40);
+            if (frames <= PeakPyramid.DETAIL_FRAMES
+                    || buckets != (int) ((frames + PeakPyramid.BASE_FRAMES - 1) >> PeakPyramid.BASE_SHIFT)
+                    || in.size() != SIDECAR_HEADER + 6L * buckets) {
+                return null;
+            }
+            ByteBuffer data = ByteBuffer.allocate(6 * buckets).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(in, data, SIDECAR_HEADER);
+            ShortBuffer values = data.flip().asShortBuffer();
+            float[] min = unpack(values, buckets);
+            float[] max = unpack(values, buckets);
+            float[] rms = unpack(values, buckets);
+            if (directory != null) {
+                // last use, for the LRU trim
+                sidecar.setLastModified(System.currentTimeMillis());
+            }
+            return PeakPyramid.fromBuckets(format, frames, min, max, rms);
+        } catch (IOException ex) {
+            System.err.println("Unable to read peaks " + sidecar + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the sidecar of an audio file, replacing an older one, unless the file is short.
+     *
+     * @param peaks the pyramid of the whole file
+     */
+    public void store(File audio, PeakPyramid peaks) throws IOException {
+        if (peaks.getFrameLength() <= PeakPyramid.DETAIL_FRAMES) {
+            return;
+        }
+        File sidecar = sidecarFor(audio);
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+        int buckets = peaks.getBucketCount();
+        ByteBuffer out = ByteBuffer.allocate(SIDECAR_HEADER + 6 * buckets).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putLong(audio.length()).putLong(audio.lastModified()).putLong(headerCrc(audio));
+        out.putLong(peaks.getFrameLength()).putInt(buckets);
+        float[] min = new float[buckets];
+        float[] max = new float[buckets];
+        float[] rms = new float[buckets];
+        peaks.copyBuckets(0, buckets, min, max, rms);
+        ShortBuffer values = out.asShortBuffer();
+        pack(values, min);
+        pack(values, max);
+        pack(values, rms);
+        out.position(0);
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (directory != null) {
+            trim();
+        }
+    }
+
+    /**
+     * Deletes the least recently used sidecars of the cache directory until the rest fit in maxBytes.
+     */
+    private void trim() {
+        File[] sidecars = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (sidecars == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : sidecars) {
+            total += f.length();
+        }
+        Arrays.sort(sidecars, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < sidecars.length - 1 && total > maxBytes; i++) {
+            long length = sidecars[i].length();
+            if (sidecars[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    /**
+     * @return the CRC32 of the first {@link #HEADER_BYTES} of a file
+     */
+    static long headerCrc(File audio) throws IOException {
+        try (FileChannel in = FileChannel.open(audio.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(HEADER_BYTES, in.size()));
+            readFully(in, head, 0);
+            CRC32 crc = new CRC32();
+            crc.update(head.flip());
+            return crc.getValue();
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = in.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    private static void pack(ShortBuffer out, float[] values) {
+        for (float v : values) {
+            out.put((short) Math.round(Math.max(-1f, Math.min(1f, v)) * Short.MAX_VALUE));
+        }
+    }
+
+    private static float[] unpack(ShortBuffer in, int count) {
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.get() / (float) Short.MAX_VALUE;
+        }
+        return values;
+    }
+}
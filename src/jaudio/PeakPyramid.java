@@ -0,0 +1,427 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Multi-resolution min/max/RMS summary of a signal, built in one pass over the PCM data.
+ * <p>
+ * Level 0 holds one bucket per {@link #BASE_FRAMES} frames (all channels mixed), every level
+ * above halves the resolution. Rendering picks the level closest to the requested frames per
+ * pixel, so drawing costs about two buckets per pixel whatever the clip length. Clips of up to
+ * {@link #DETAIL_FRAMES} frames also keep the min/max of every frame, so with fewer than
+ * BASE_FRAMES frames per pixel the columns follow the samples instead of showing whole buckets.
+ * Appending and rendering may happen on different threads, e.g. a capture loop feeding a live view.
+ */
+public class PeakPyramid {
+
+    static final int BASE_SHIFT = 8;
+    static final int BASE_FRAMES = 1 << BASE_SHIFT;
+    static final int DETAIL_FRAMES = 1 << 20;
+    private static final int MAX_LEVELS = 48;
+
+    private final AudioFormat format;
+    private final int channels;
+    private final int frameSize;
+    private final PcmDecoder decoder;
+    private final float[][] min = new float[MAX_LEVELS][];
+    private final float[][] max = new float[MAX_LEVELS][];
+    private final float[][] sumSq = new float[MAX_LEVELS][];
+    private int levels = 1;
+    private int completeBuckets;
+    private long frames;
+    private float[] scratch = new float[0];
+    // per frame min/max over the channels, null once the clip is longer than DETAIL_FRAMES
+    private float[] frameMin;
+    private float[] frameMax;
+
+    // the level 0 bucket currently being filled
+    private float accMin = Float.POSITIVE_INFINITY;
+    private float accMax = Float.NEGATIVE_INFINITY;
+    private double accSq;
+    private int accFrames;
+
+    /**
+     * @param format         PCM format of the bytes passed to {@link #append(byte[], int, int)}
+     * @param expectedFrames capacity hint, 0 if unknown
+     */
+    public PeakPyramid(AudioFormat format, long expectedFrames) {
+        this.format = format;
+        this.channels = format.getChannels();
+        this.frameSize = format.getFrameSize();
+        this.decoder = new PcmDecoder(format, true);
+        int buckets = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, (expectedFrames >> BASE_SHIFT) + 1));
+        min[0] = new float[buckets];
+        max[0] = new float[buckets];
+        sumSq[0] = new float[buckets];
+        if (expectedFrames <= DETAIL_FRAMES) {
+            frameMin = new float[(int) Math.max(16, expectedFrames)];
+            frameMax = new float[frameMin.length];
+        }
+    }
+
+    /**
+     * Builds the pyramid from the remaining frames of a stream.
+     */
+    public static PeakPyramid build(AudioInputStream stream) throws IOException {
+        AudioFormat format = stream.getFormat();
+        PeakPyramid pyramid = new PeakPyramid(format, Math.max(0, stream.getFrameLength()));
+        byte[] data = new byte[format.getFrameSize() * 16384];
+        int numBytesRead;
+        while ((numBytesRead = stream.read(data)) != -1) {
+            pyramid.append(data, 0, numBytesRead);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Builds the pyramid window by window from a mapped file, with constant heap use.
+     */
+    public static PeakPyramid build(MappedWaveReader reader) throws IOException {
+        AudioFormat format = reader.getFormat();
+        PeakPyramid pyramid = new PeakPyramid(format, reader.getFrameLength());
+        int windowFrames = 16384;
+        float[] window = new float[windowFrames * format.getChannels()];
+        long frame = 0;
+        int frames;
+        while ((frames = reader.readFrames(frame, windowFrames, window)) > 0) {
+            pyramid.append(window, 0, frames);
+            frame += frames;
+        }
+        return pyramid;
+    }
+
+    /**
+     * Builds the pyramid segment by segment from a take kept in memory, without copying it.
+     */
+    public static PeakPyramid build(AudioStore store) {
+        PeakPyramid pyramid = new PeakPyramid(store.getFormat(), store.getFrameLength());
+        byte[][] segments = store.segments();
+        long length = store.getFrameLength() * store.getFormat().getFrameSize();
+        for (int i = 0; (long) i * store.getSegmentBytes() < length; i++) {
+            pyramid.append(segments[i], 0, (int) Math.min(store.getSegmentBytes(), length - (long) i * store.getSegmentBytes()));
+        }
+        return pyramid;
+    }
+
+    public static PeakPyramid build(AudioFormat format, byte[] audioBytes) {
+        PeakPyramid pyramid = new PeakPyramid(format, audioBytes.length / format.getFrameSize());
+        pyramid.append(audioBytes, 0, audioBytes.length);
+        return pyramid;
+    }
+
+    /**
+     * Rebuilds a pyramid from its level 0 buckets, as copied out by {@link #copyBuckets}, without the audio.
+     *
+     * @param rms RMS of each bucket over all channels
+     */
+    public static PeakPyramid fromBuckets(AudioFormat format, long frames, float[] min, float[] max, float[] rms) {
+        PeakPyramid pyramid = new PeakPyramid(format, 0);
+        pyramid.frameMin = null;
+        pyramid.frameMax = null;
+        int buckets = (int) ((frames + BASE_FRAMES - 1) >> BASE_SHIFT);
+        pyramid.min[0] = min;
+        pyramid.max[0] = max;
+        pyramid.sumSq[0] = new float[buckets];
+        for (int i = 0; i < buckets; i++) {
+            int covered = (int) Math.min(BASE_FRAMES, frames - ((long) i << BASE_SHIFT));
+            pyramid.sumSq[0][i] = rms[i] * rms[i] * covered;
+        }
+        pyramid.frames = frames;
+        pyramid.completeBuckets = (int) (frames >> BASE_SHIFT);
+        pyramid.accFrames = (int) (frames & (BASE_FRAMES - 1));
+        if (pyramid.accFrames > 0) {
+            // the last bucket is partial, appending would go on filling it
+            pyramid.accMin = min[buckets - 1];
+            pyramid.accMax = max[buckets - 1];
+            pyramid.accSq = pyramid.sumSq[0][buckets - 1] * format.getChannels();
+        }
+        pyramid.buildLevels();
+        return pyramid;
+    }
+
+    /**
+     * Computes every level above 0 from level 0, a level at a time.
+     */
+    private void buildLevels() {
+        for (int level = 1; bucketCount(level - 1) > 1; level++) {
+            int below = level - 1;
+            int count = bucketCount(level);
+            int belowCount = bucketCount(below);
+            min[level] = new float[count];
+            max[level] = new float[count];
+            sumSq[level] = new float[count];
+            for (int parent = 0; parent < count; parent++) {
+                int left = parent << 1;
+                float lo = min[below][left];
+                float hi = max[below][left];
+                float sq = sumSq[below][left];
+                if (left + 1 < belowCount) {
+                    lo = Math.min(lo, min[below][left + 1]);
+                    hi = Math.max(hi, max[below][left + 1]);
+                    sq += sumSq[below][left + 1];
+                }
+                min[level][parent] = lo;
+                max[level][parent] = hi;
+                sumSq[level][parent] = sq;
+            }
+            levels = level + 1;
+        }
+    }
+
+    /**
+     * @return the number of level 0 buckets, the last one possibly partial
+     */
+    public synchronized int getBucketCount() {
+        return bucketCount(0);
+    }
+
+    /**
+     * Copies level 0 buckets [start, start + count) out, the inverse of {@link #fromBuckets}.
+     */
+    public synchronized void copyBuckets(int start, int count, float[] outMin, float[] outMax, float[] outRms) {
+        for (int i = 0; i < count; i++) {
+            int b = start + i;
+            long covered = Math.min(BASE_FRAMES, frames - ((long) b << BASE_SHIFT));
+            outMin[i] = min[0][b];
+            outMax[i] = max[0][b];
+            outRms[i] = (float) Math.sqrt(sumSq[0][b] / covered);
+        }
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public synchronized long getFrameLength() {
+        return frames;
+    }
+
+    /**
+     * @return whether the min/max of every frame is kept, see {@link #DETAIL_FRAMES}
+     */
+    public synchronized boolean hasFrameDetail() {
+        return frameMin != null;
+    }
+
+    /**
+     * Adds whole frames of raw PCM in the pyramid's format.
+     */
+    public void append(byte[] data, int offset, int length) {
+        int frameCount = length / frameSize;
+        int samples = frameCount * channels;
+        if (scratch.length < samples) {
+            scratch = new float[samples];
+        }
+        decoder.decode(data, offset, frameCount * frameSize, scratch, 0);
+        append(scratch, 0, frameCount);
+    }
+
+    /**
+     * Adds interleaved samples normalized to [-1, 1].
+     */
+    public synchronized void append(float[] samples, int offset, int frameCount) {
+        if (frameCount <= 0) {
+            return;
+        }
+        if (frameMin != null) {
+            appendFrames(samples, offset, frameCount);
+        }
+        int idx = offset;
+        for (int f = 0; f < frameCount; f++) {
+            for (int c = 0; c < channels; c++) {
+                float s = samples[idx++];
+                if (s < accMin) {
+                    accMin = s;
+                }
+                if (s > accMax) {
+                    accMax = s;
+                }
+                accSq += s * s;
+            }
+            if (++accFrames == BASE_FRAMES) {
+                storePending();
+                completeBuckets++;
+                accMin = Float.POSITIVE_INFINITY;
+                accMax = Float.NEGATIVE_INFINITY;
+                accSq = 0;
+                accFrames = 0;
+            }
+        }
+        frames += frameCount;
+        if (accFrames > 0) {
+            storePending();
+        }
+    }
+
+    private void appendFrames(float[] samples, int offset, int frameCount) {
+        if (frames + frameCount > DETAIL_FRAMES) {
+            frameMin = null;
+            frameMax = null;
+            return;
+        }
+        int end = (int) frames + frameCount;
+        if (frameMin.length < end) {
+            int capacity = Math.min(DETAIL_FRAMES, Math.max(end, frameMin.length * 2));
+            frameMin = Arrays.copyOf(frameMin, capacity);
+            frameMax = Arrays.copyOf(frameMax, capacity);
+        }
+        int idx = offset;
+        for (int f = (int) frames; f < end; f++) {
+            float lo = samples[idx];
+            float hi = lo;
+            for (int c = 1; c < channels; c++) {
+                float s = samples[idx + c];
+                lo = Math.min(lo, s);
+                hi = Math.max(hi, s);
+            }
+            idx += channels;
+            frameMin[f] = lo;
+            frameMax[f] = hi;
+        }
+    }
+
+    private void storePending() {
+        int i = completeBuckets;
+        ensureCapacity(0, i + 1);
+        min[0][i] = accMin;
+        max[0][i] = accMax;
+        sumSq[0][i] = (float) (accSq / channels);
+        propagate(i);
+    }
+
+    /**
+     * Recomputes the parents of level 0 bucket i up to the top of the pyramid.
+     */
+    private void propagate(int i) {
+        for (int level = 1; bucketCount(level - 1) > 1; level++) {
+            if (level == levels) {
+                levels++;
+            }
+            int parent = i >> level;
+            int left = parent << 1;
+            int below = level - 1;
+            ensureCapacity(level, parent + 1);
+            float lo = min[below][left];
+            float hi = max[below][left];
+            float sq = sumSq[below][left];
+            if (left + 1 < bucketCount(below)) {
+                lo = Math.min(lo, min[below][left + 1]);
+                hi = Math.max(hi, max[below][left + 1]);
+                sq += sumSq[below][left + 1];
+            }
+            min[level][parent] = lo;
+            max[level][parent] = hi;
+            sumSq[level][parent] = sq;
+        }
+    }
+
+    private int bucketCount(int level) {
+        int buckets = completeBuckets + (accFrames > 0 ? 1 : 0);
+        return (int) (((long) buckets + (1L << level) - 1) >> level);
+    }
+
+    private void ensureCapacity(int level, int size) {
+        float[] current = min[level];
+        if (current != null && current.length >= size) {
+            return;
+        }
+        int capacity = current == null ? Math.max(16, size) : Math.max(size, current.length + (current.length >> 1));
+        min[level] = current == null ? new float[capacity] : Arrays.copyOf(current, capacity);
+        max[level] = max[level] == null ? new float[capacity] : Arrays.copyOf(max[level], capacity);
+        sumSq[level] = sumSq[level] == null ? new float[capacity] : Arrays.copyOf(sumSq[level], capacity);
+    }
+
+    /**
+     * Summarizes the frame range [startFrame, endFrame) into width pixel columns.
+     *
+     * @param outMin minimum per column, may be null
+     * @param outMax maximum per column, may be null
+     * @param outRms RMS per column, may be null
+     * @return the number of columns that hold data
+     */
+    public synchronized int render(long startFrame, long endFrame, int width, float[] outMin, float[] outMax, float[] outRms) {
+        if (width <= 0 || endFrame <= startFrame || frames == 0) {
+            return 0;
+        }
+        double framesPerPixel = (double) (endFrame - startFrame) / width;
+        if (framesPerPixel < BASE_FRAMES && frameMin != null) {
+            return renderFrames(startFrame, framesPerPixel, width, outMin, outMax, outRms);
+        }
+        int level = 0;
+        while (level + 1 < levels && (BASE_FRAMES << (level + 1)) <= framesPerPixel) {
+            level++;
+        }
+        long bucketFrames = (long) BASE_FRAMES << level;
+        int count = bucketCount(level);
+        float[] lmin = min[level];
+        float[] lmax = max[level];
+        float[] lsq = sumSq[level];
+        int filled = 0;
+        for (int x = 0; x < width; x++) {
+            long f0 = startFrame + (long) (x * framesPerPixel);
+            long f1 = startFrame + (long) ((x + 1) * framesPerPixel);
+            int b0 = (int) (f0 / bucketFrames);
+            if (f0 >= frames || b0 >= count) {
+                break;
+            }
+            int b1 = (int) Math.min(count, Math.max(b0 + 1, (f1 + bucketFrames - 1) / bucketFrames));
+            float lo = lmin[b0];
+            float hi = lmax[b0];
+            double sq = lsq[b0];
+            for (int b = b0 + 1; b < b1; b++) {
+                lo = Math.min(lo, lmin[b]);
+                hi = Math.max(hi, lmax[b]);
+                sq += lsq[b];
+            }
+            long covered = Math.min(b1 * bucketFrames, frames) - b0 * bucketFrames;
+            if (outMin != null) {
+                outMin[x] = lo;
+            }
+            if (outMax != null) {
+                outMax[x] = hi;
+            }
+            if (outRms != null) {
+                outRms[x] = (float) Math.sqrt(sq / covered);
+            }
+            filled++;
+        }
+        return filled;
+    }
+
+    /**
+     * Summarizes from the per frame values, each column reaching one frame into the next so the trace stays
+     * connected when there are fewer frames than columns. The RMS is still that of the level 0 bucket.
+     */
+    private int renderFrames(long startFrame, double framesPerPixel, int width, float[] outMin, float[] outMax, float[] outRms) {
+        int filled = 0;
+        for (int x = 0; x < width; x++) {
+            long f0 = startFrame + (long) (x * framesPerPixel);
+            if (f0 >= frames) {
+                break;
+            }
+            long f1 = Math.min(frames, Math.max(f0 + 1, startFrame + (long) ((x + 1) * framesPerPixel)) + 1);
+            float lo = frameMin[(int) f0];
+            float hi = frameMax[(int) f0];
+            for (int f = (int) f0 + 1; f < f1; f++) {
+                lo = Math.min(lo, frameMin[f]);
+                hi = Math.max(hi, frameMax[f]);
+            }
+            if (outMin != null) {
+                outMin[x] = lo;
+            }
+            if (outMax != null) {
+                outMax[x] = hi;
+            }
+            if (outRms != null) {
+                int b = (int) (f0 >> BASE_SHIFT);
+                long covered = Math.min(BASE_FRAMES, frames - ((long) b << BASE_SHIFT));
+                outRms[x] = (float) Math.sqrt(sumSq[0][b] / covered);
+            }
+            filled++;
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,104 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Plays a stream to an {@link AudioSink} without ever blocking in write.
+ * <p>
+ * Each step tops the sink buffer up to what {@link AudioSink#available()} reports free; the session ends once
+ * the source is exhausted and the sink has played everything.
+ */
+public class PlaybackSession extends Session {
+
+    private final AudioInputStream source;
+    private AudioSink line;
+    private final boolean ownsLine;
+    private byte[] chunk;
+    private int pendingOffset;
+    private int pendingLength;
+    private boolean eof;
+    private boolean primed;
+    private int bufferSize;
+
+    /**
+     * @param line an open sink in the source format, or null to open the default line
+     */
+    public PlaybackSession(String id, AudioInputStream source, AudioSink line) {
+        super(id);
+        this.source = source;
+        this.line = line;
+        this.ownsLine = line == null;
+    }
+
+    public AudioFormat getFormat() {
+        return source.getFormat();
+    }
+
+    protected void open() throws Exception {
+        AudioFormat format = source.getFormat();
+        if (line == null) {
+            line = LineSink.open(format, AudioSystem.NOT_SPECIFIED);
+        }
+        bufferSize = line.getBufferSize();
+        int frameSize = format.getFrameSize();
+        chunk = new byte[Math.max(frameSize, bufferSize / 4 / frameSize * frameSize)];
+        metrics.lineOpened(bufferSize);
+        line.start();
+    }
+
+    protected boolean step() throws Exception {
+        int frameSize = source.getFormat().getFrameSize();
+        // at most a buffer per tick, so an unpaced sink cannot hold the executor thread forever
+        for (int budget = bufferSize; budget > 0; ) {
+            if (pendingLength == 0 && !eof) {
+                long start = System.nanoTime();
+                int numBytesRead = source.read(chunk, 0, chunk.length);
+                metrics.conversion(System.nanoTime() - start);
+                if (numBytesRead == -1) {
+                    eof = true;
+                } else {
+                    pendingOffset = 0;
+                    pendingLength = numBytesRead;
+                }
+            }
+            int free = line.available();
+            if (eof && pendingLength == 0) {
+                // done once the line has played out
+                return free < bufferSize;
+            }
+            int fill = bufferSize - free;
+            metrics.bufferFill(fill);
+            if (fill == 0 && primed) {
+                metrics.underrun();
+            }
+            int n = Math.min(free, pendingLength) / frameSize * frameSize;
+            if (n == 0) {
+                return true;
+            }
+            long start = System.nanoTime();
+            int written = line.write(chunk, pendingOffset, n);
+            metrics.chunk(written, System.nanoTime() - start);
+            primed = true;
+            pendingOffset += written;
+            pendingLength -= written;
+            budget -= written;
+            countFrames(written / frameSize);
+        }
+        return true;
+    }
+
+    protected void close() throws Exception {
+        try {
+            if (line != null) {
+                line.stop();
+                if (ownsLine) {
+                    line.close();
+                }
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -1,18 +1,130 @@
 package jaudio;
 
 import javax.sound.sampled.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Write data to the OutputChannel.
+ * <p>
+ * A read-ahead thread copies the cached PCM into a lock-free ring ahead of the line, so the playback thread only feeds
+ * the line and stalls in I/O or conversion do not turn into underruns.
  */
 public class Player implements Runnable {
 
     private MainController mainController;
-    SourceDataLine line;
+    AudioSink line;
     Thread thread;
+    private volatile AudioSink sink;
+    final PositionClock clock = new PositionClock();
+    private final AtomicLong pendingSeek = new AtomicLong(-1);
+    private PcmCache cache;
+    private File cachedFile;
+    private long cachedFileLength;
+    private long cachedFileModified;
+    private AudioStore cachedStore;
+    private AudioInputStream cachedStream;
+    private int ringMillis = 1000;
+    private float lowWatermark = 0.5f;
+    private float startWatermark = 0.25f;
+    final StreamMetrics metrics = new StreamMetrics();
+    private volatile LevelMeter meter;
+    private boolean lowLatency;
+    private int targetLatencyMillis = LatencyTuner.DEFAULT_TARGET_MILLIS;
+    private volatile LatencyTuner tuner;
+    // the read-ahead of the current or last run, joined before the cache it reads is closed or replaced
+    private volatile Thread producer;
 
     public Player(MainController mainController) {
         this.mainController = mainController;
+        metrics.register("Player");
+    }
+
+    public int getRingMillis() {
+        return ringMillis;
+    }
+
+    /**
+     * Sets how much audio the read-ahead thread keeps decoded ahead of the line.
+     */
+    public void setRingMillis(int ringMillis) {
+        this.ringMillis = ringMillis;
+    }
+
+    public float getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Sets the ring fill level, as a fraction of its depth, below which the read-ahead thread is woken up to refill it.
+     */
+    public void setLowWatermark(float lowWatermark) {
+        this.lowWatermark = lowWatermark;
+    }
+
+    public float getStartWatermark() {
+        return startWatermark;
+    }
+
+    /**
+     * Sets the ring fill level, as a fraction of its depth, reached before the line is started.
+     */
+    public void setStartWatermark(float startWatermark) {
+        this.startWatermark = startWatermark;
+    }
+
+    public boolean isLowLatency() {
+        return lowLatency;
+    }
+
+    /**
+     * In low latency mode the line starts with a small queue that a {@link LatencyTuner} grows on underruns and
+     * shrinks back toward the target latency, instead of a fixed buffer of {@link MainController#BUFFER_SIZE}.
+     */
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+    }
+
+    public int getTargetLatencyMillis() {
+        return targetLatencyMillis;
+    }
+
+    /**
+     * Sets the output latency low latency mode aims for.
+     */
+    public void setTargetLatencyMillis(int targetLatencyMillis) {
+        this.targetLatencyMillis = targetLatencyMillis;
+    }
+
+    /**
+     * @return the tuner of the current or last low latency playback, with the latency it achieved, or null
+     */
+    public LatencyTuner getTuner() {
+        return tuner;
+    }
+
+    /**
+     * Plays the next take to the given sink instead of the default playback line, in the sink's format. The sink is
+     * closed when playback ends.
+     */
+    public void setSink(AudioSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Underruns count line buffers found empty, starvations count waits for the read-ahead thread.
+     */
+    public StreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the output level meters of the current or last playback, or null before the first one
+     */
+    public LevelMeter getMeter() {
+        return meter;
     }
 
     public void start() {
@@ -22,8 +134,27 @@ public class Player implements Runnable {
         thread.start();
     }
 
+    /**
+     * Stops playback and waits until the run has let go of the line and its read-ahead is done with the cache.
+     */
     public void stop() {
+        Thread playback = thread;
         thread = null;
+        if (playback != null && playback != Thread.currentThread()) {
+            try {
+                playback.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops playback and unregisters the metrics MBean, for a controller that is no longer used.
+     */
+    public void dispose() {
+        stop();
+        metrics.unregister();
     }
 
     private void shutDown(String message) {
@@ -43,87 +174,332 @@ public class Player implements Runnable {
     }
 
 
-    public void run() {
+    /**
+     * Moves playback to the given frame. Applied right away while playing, otherwise on the next start.
+     */
+    public void seek(long frame) {
+        pendingSeek.set(Math.max(0, frame));
+    }
 
-        // reload the file if loaded by file
-        if (mainController.file != null) {
-            mainController.createAudioInputStream(mainController.file, false);
+    /**
+     * Starts playback, or jumps if already playing, at the given time.
+     */
+    public void playFrom(double seconds) {
+        seek((long) (seconds * mainController.formatControls.getFormat().getFrameRate()));
+        if (thread == null) {
+            mainController.playCaptured();
         }
+    }
 
-        // make sure we have something to play
-        if (mainController.audioInputStream == null) {
-            shutDown("No loaded audio to play back");
-            return;
+    /**
+     * Closes the cached PCM of the last run, unless playing, so the memory it holds can be reused.
+     */
+    void clearCache() {
+        if (thread == null && cache != null && joinReadAhead()) {
+            try {
+                cache.close();
+            } catch (IOException ex) {
+                // nothing left to release
+            }
+            cache = null;
+            cachedStore = null;
         }
-        // reset to the beginnning of the stream
-        try {
-            mainController.audioInputStream.reset();
-        } catch (Exception e) {
-            shutDown("Unable to reset the stream\n" + e);
-            return;
+    }
+
+    /**
+     * Returns the converted PCM of the current audio, reusing the cache of the previous run when the audio did not
+     * change.
+     */
+    private PcmCache playbackCache(AudioFormat format) throws Exception {
+        File file = mainController.file;
+        AudioStore audioStore = mainController.audioStore;
+        AudioInputStream audioInputStream = mainController.audioInputStream;
+        boolean unchanged = cache != null && cache.getFormat().matches(format);
+        if (file != null) {
+            unchanged &= file.equals(cachedFile) && file.length() == cachedFileLength && file.lastModified() == cachedFileModified;
+        } else if (audioStore != null) {
+            unchanged &= audioStore == cachedStore;
+        } else {
+            unchanged &= audioInputStream == cachedStream;
         }
+        if (unchanged) {
+            return cache;
+        }
+        if (cache != null) {
+            if (!joinReadAhead()) {
+                throw new InterruptedException("Interrupted waiting for the read-ahead of the last run");
+            }
+            cache.close();
+            cache = null;
+        }
+        if (file != null) {
+            cache = PcmCache.forFile(file, format);
+        } else if (audioStore != null) {
+            cache = PcmCache.forStore(audioStore, format);
+        } else {
+            audioInputStream.reset();
+            cache = PcmCache.convert(audioInputStream, format);
+        }
+        cachedFile = file;
+        cachedFileLength = file == null ? 0 : file.length();
+        cachedFileModified = file == null ? 0 : file.lastModified();
+        cachedStore = audioStore;
+        cachedStream = audioInputStream;
+        return cache;
+    }
 
-        // get an AudioInputStream of the desired format for playback
-        AudioFormat format = mainController.formatControls.getFormat();
-        AudioInputStream playbackInputStream = AudioSystem.getAudioInputStream(format, mainController.audioInputStream);
+    public void run() {
 
-        if (playbackInputStream == null) {
-            shutDown("Unable to convert stream of format " + mainController.audioInputStream + " to format " + format);
+        // make sure we have something to play
+        if (mainController.file == null && mainController.audioInputStream == null) {
+            shutDown("No loaded audio to play back");
             return;
         }
 
-        // define the required attributes for our line,
-        // and make sure a compatible line is supported.
-
-        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-        if (!AudioSystem.isLineSupported(info)) {
-            shutDown("Line matching " + info + " not supported.");
+        // get the audio in the desired format for playback, converted once and then cached
+        AudioSink given = sink;
+        sink = null;
+        AudioFormat format = given != null ? given.getFormat() : mainController.formatControls.getFormat();
+        PcmCache pcm;
+        try {
+            long start = System.nanoTime();
+            pcm = playbackCache(format);
+            metrics.conversion(System.nanoTime() - start);
+        } catch (Exception e) {
+            shutDown("Unable to convert stream of format " + mainController.audioInputStream + " to format " + format + "\n" + e);
+            if (given != null) {
+                given.close();
+            }
             return;
         }
 
-        // get and open the source data line for playback.
+        // get and open the source data line for playback, unless a sink was given.
 
-        try {
-            line = (SourceDataLine) AudioSystem.getLine(info);
-            line.open(format, mainController.BUFFER_SIZE);
-        } catch (LineUnavailableException ex) {
-            shutDown("Unable to open the line: " + ex);
-            return;
+        LatencyTuner tuner = lowLatency ? new LatencyTuner(format, targetLatencyMillis) : null;
+        if (given != null) {
+            line = given;
+        } else {
+            try {
+                line = LineSink.open(format, tuner != null ? tuner.getLineBufferSize() : mainController.BUFFER_SIZE);
+            } catch (LineUnavailableException ex) {
+                shutDown("Unable to open the line: " + ex.getMessage());
+                return;
+            }
         }
 
         // play back the captured audio data
 
         int frameSizeInBytes = format.getFrameSize();
-        int bufferLengthInFrames = line.getBufferSize() / 8;
+        if (tuner != null) {
+            tuner.lineOpened(line.getBufferSize());
+            this.tuner = tuner;
+        }
+        metrics.tuned(tuner);
+        // chunks of a tuned line vary, up to a quarter of its buffer
+        int bufferLengthInFrames = line.getBufferSize() / (tuner != null ? 4 * frameSizeInBytes : 8);
         int bufferLengthInBytes = bufferLengthInFrames * frameSizeInBytes;
         byte[] data = new byte[bufferLengthInBytes];
-        int numBytesRead = 0;
+        LevelMeter meter = new LevelMeter(format);
+        this.meter = meter;
+        int lineBufferSize = line.getBufferSize();
+        metrics.lineOpened(lineBufferSize);
+        long position = Math.max(0, pendingSeek.getAndSet(-1));
+
+        int ringBytes = Math.max(4 * bufferLengthInBytes, (int) (format.getFrameRate() * ringMillis / 1000) * frameSizeInBytes);
+        ReadAhead readAhead = new ReadAhead(pcm, new ByteRingBuffer(ringBytes), bufferLengthInBytes, position);
+        ByteRingBuffer ring = readAhead.ring;
+        int lowBytes = Math.min((int) (ring.capacity() * lowWatermark), ring.capacity() - bufferLengthInBytes);
+        int startBytes = Math.min((int) (ring.capacity() * startWatermark), ring.capacity() - bufferLengthInBytes);
+        Thread producer = new Thread(readAhead);
+        producer.setName("Playback read-ahead");
+        this.producer = producer;
+        producer.start();
 
-        // start the source data line
+        // prime the ring, then start the source data line
+        while (thread != null && ring.available() < startBytes && !readAhead.eof) {
+            LockSupport.parkNanos(this, 1_000_000);
+        }
+        clock.attach(line);
+        clock.seek(position);
         line.start();
 
+        boolean starved = false;
+        boolean primed = false;
         while (thread != null) {
             try {
-                if ((numBytesRead = playbackInputStream.read(data)) == -1) {
-                    break;
+                long seekTo = pendingSeek.getAndSet(-1);
+                if (seekTo >= 0) {
+                    // drop what is queued so the jump is heard right away
+                    readAhead.seek(seekTo, producer);
+                    line.flush();
+                    primed = false;
+                    clock.seek(Math.min(seekTo, pcm.getFrameLength()));
+                }
+                // a tuned line is only topped up to its queue
+                int fill = lineBufferSize - line.available();
+                long wait = tuner != null ? tuner.waitNanos(fill) : 0;
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+                int numBytesRead = ring.read(data, 0, tuner != null ? tuner.getChunkBytes() : bufferLengthInBytes);
+                if (numBytesRead == 0) {
+                    if (readAhead.eof && ring.available() == 0) {
+                        break;
+                    }
+                    if (!starved) {
+                        starved = true;
+                        metrics.starvation();
+                    }
+                    LockSupport.unpark(producer);
+                    LockSupport.parkNanos(this, 1_000_000);
+                    continue;
+                }
+                starved = false;
+                if (ring.available() <= lowBytes) {
+                    LockSupport.unpark(producer);
+                }
+                // an empty line buffer after the first write means the device already played silence
+                fill = lineBufferSize - line.available();
+                metrics.bufferFill(fill);
+                if (fill == 0 && primed && tuner == null) {
+                    metrics.underrun();
                 }
+                meter.update(data, 0, numBytesRead);
+                long writeStart = System.nanoTime();
                 int numBytesRemaining = numBytesRead;
                 while (numBytesRemaining > 0) {
-                    numBytesRemaining -= line.write(data, 0, numBytesRemaining);
+                    numBytesRemaining -= line.write(data, numBytesRead - numBytesRemaining, numBytesRemaining);
                 }
+                metrics.chunk(numBytesRead, System.nanoTime() - writeStart);
+                if (tuner != null) {
+                    // a small queue also runs dry while write itself is held up
+                    int queued = lineBufferSize - line.available();
+                    boolean underrun = primed && LatencyTuner.isUnderrun(fill, numBytesRead, queued);
+                    if (underrun) {
+                        metrics.underrun();
+                    }
+                    tuner.written(fill, numBytesRead, queued, underrun);
+                }
+                primed = true;
+                clock.count(numBytesRead / frameSizeInBytes);
             } catch (Exception e) {
                 shutDown("Error during playback: " + e);
                 break;
             }
         }
+        readAhead.running = false;
+        LockSupport.unpark(producer);
+        joinReadAhead();
+        if (readAhead.error != null) {
+            shutDown("Error reading audio: " + readAhead.error);
+        }
         // we reached the end of the stream. let the data play out, then
         // stop and close the line.
         if (thread != null) {
             line.drain();
         }
         line.stop();
+        clock.detach();
         line.close();
         line = null;
         shutDown(null);
     }
+
+    /**
+     * Waits for the read-ahead of the last run to finish, so the cache it reads can be closed.
+     *
+     * @return false if interrupted first, the cache must then be left open
+     */
+    private boolean joinReadAhead() {
+        Thread producer = this.producer;
+        if (producer == null) {
+            return true;
+        }
+        try {
+            producer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the cached PCM into the ring ahead of the line. Sleeps while the ring is above the low watermark.
+     */
+    private static class ReadAhead implements Runnable {
+
+        final PcmCache pcm;
+        final ByteRingBuffer ring;
+        final byte[] chunk;
+        final int frameSize;
+        volatile boolean running = true;
+        volatile boolean eof;
+        volatile Exception error;
+        volatile Thread consumer;
+        long position;
+        // seek handshake: the consumer requests, the producer repositions, the consumer drops the ring and acknowledges
+        volatile long seekTarget;
+        volatile int seekRequested;
+        volatile int seekServed;
+        volatile int seekAcked;
+
+        ReadAhead(PcmCache pcm, ByteRingBuffer ring, int chunkBytes, long position) {
+            this.pcm = pcm;
+            this.ring = ring;
+            this.chunk = new byte[chunkBytes];
+            this.frameSize = pcm.getFormat().getFrameSize();
+            this.position = position;
+            this.consumer = Thread.currentThread();
+        }
+
+        /**
+         * Called on the consumer thread.
+         */
+        void seek(long frame, Thread producer) {
+            seekTarget = frame;
+            int request = seekRequested + 1;
+            seekRequested = request;
+            LockSupport.unpark(producer);
+            while (seekServed != request && producer.isAlive()) {
+                LockSupport.parkNanos(this, 1_000_000);
+            }
+            ring.skip();
+            seekAcked = request;
+            LockSupport.unpark(producer);
+        }
+
+        public void run() {
+            int served = 0;
+            while (running) {
+                int requested = seekRequested;
+                if (requested != served) {
+                    position = Math.min(seekTarget, pcm.getFrameLength());
+                    eof = false;
+                    served = requested;
+                    seekServed = served;
+                    LockSupport.unpark(consumer);
+                }
+                if (seekAcked != served || eof || ring.free() < chunk.length) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                int frames;
+                try {
+                    frames = pcm.read(position, chunk, 0, chunk.length / frameSize);
+                } catch (Exception ex) {
+                    error = ex;
+                    frames = 0;
+                }
+                if (frames > 0) {
+                    ring.write(chunk, 0, frames * frameSize);
+                    position += frames;
+                } else {
+                    eof = true;
+                }
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
 }
@@ -0,0 +1,168 @@
+package jaudio;
+
+import javax.sound.sampled.AudioSystem;
+import javax.swing.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Position of a data line or other {@link AudioEndpoint}, driven by its state changes instead of a polling thread.
+ * <p>
+ * Start and stop anchor the clock to the endpoint's frame position, in between the position is
+ * interpolated from System.nanoTime so the cursor moves smoothly instead of jumping with the coarse
+ * updates of getLongFramePosition. For playback the interpolation is capped by the frames the owner
+ * has actually written, counted through {@link #count(int)}. All running clocks share one Swing timer
+ * paced at about 60 Hz, which only runs while some clock is running, so paused or idle panels cost
+ * nothing.
+ */
+public class PositionClock implements AudioEndpoint.StateListener {
+
+    static final int TICK_MS = 16;
+    private static final CopyOnWriteArrayList<PositionClock> running = new CopyOnWriteArrayList<>();
+    private static Timer timer; // event dispatch thread only
+
+    private final List<Runnable> tickListeners = new CopyOnWriteArrayList<>();
+    private volatile AudioEndpoint line;
+    private volatile boolean active;
+    private volatile float frameRate = 1;
+    private volatile long anchorFrame;
+    private volatile long anchorNanos;
+    private volatile long framesCounted;
+    private volatile long lastFrame;
+    private volatile long frameOffset;
+
+    /**
+     * Starts following a freshly opened line, call before starting it.
+     */
+    public void attach(AudioEndpoint line) {
+        detach();
+        frameRate = line.getFormat().getFrameRate();
+        framesCounted = 0;
+        frameOffset = 0;
+        lastFrame = 0;
+        anchor(0);
+        this.line = line;
+        line.addStateListener(this);
+    }
+
+    /**
+     * Stops following the line, keeping its last position.
+     */
+    public void detach() {
+        AudioEndpoint l = line;
+        if (l != null) {
+            l.removeStateListener(this);
+            if (l.isOpen()) {
+                anchor(l.getLongFramePosition());
+            }
+            line = null;
+        }
+        setActive(false);
+    }
+
+    /**
+     * Counts frames moved through the line by its owner. Called from the owner's read/write loop only.
+     */
+    public void count(int frames) {
+        framesCounted += frames;
+    }
+
+    /**
+     * Moves the clock to the given frame of the audio, for a seek on the attached line. Called by the line's owner
+     * right after flushing the line.
+     */
+    public void seek(long frame) {
+        AudioEndpoint l = line;
+        long linePosition = l == null ? 0 : l.getLongFramePosition();
+        frameOffset = frame - linePosition;
+        framesCounted = linePosition;
+        lastFrame = linePosition;
+        anchor(linePosition);
+    }
+
+    public void addTickListener(Runnable listener) {
+        tickListeners.add(listener);
+    }
+
+    public void removeTickListener(Runnable listener) {
+        tickListeners.remove(listener);
+    }
+
+    public boolean isRunning() {
+        return active;
+    }
+
+    public long getFramePosition() {
+        long pos = anchorFrame;
+        if (active) {
+            pos += (long) ((System.nanoTime() - anchorNanos) * (double) frameRate / 1e9);
+            if (line instanceof AudioSink) {
+                pos = Math.min(pos, framesCounted);
+            }
+        }
+        // never step back between two consecutive ticks
+        if (pos < lastFrame && active) {
+            pos = lastFrame;
+        }
+        lastFrame = pos;
+        return pos + frameOffset;
+    }
+
+    /**
+     * @return the position in seconds, at millisecond resolution
+     */
+    public double getSeconds() {
+        return (long) (getFramePosition() * 1000 / frameRate) / 1000.0;
+    }
+
+    public void stateChanged(boolean running, long framePosition) {
+        if (framePosition != AudioSystem.NOT_SPECIFIED) {
+            anchor(framePosition);
+        }
+        setActive(running);
+    }
+
+    private void anchor(long frame) {
+        anchorNanos = System.nanoTime();
+        anchorFrame = frame;
+        lastFrame = Math.min(lastFrame, frame);
+    }
+
+    private void setActive(boolean active) {
+        this.active = active;
+        if (active) {
+            running.addIfAbsent(this);
+            SwingUtilities.invokeLater(PositionClock::startTimer);
+        } else {
+            running.remove(this);
+            // one last tick so listeners show where the line stopped
+            SwingUtilities.invokeLater(this::fireTick);
+        }
+    }
+
+    private void fireTick() {
+        for (Runnable listener : tickListeners) {
+            listener.run();
+        }
+    }
+
+    private static void startTimer() {
+        if (timer == null) {
+            timer = new Timer(TICK_MS, e -> tick());
+            timer.setCoalesce(true);
+        }
+        if (!running.isEmpty() && !timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    private static void tick() {
+        if (running.isEmpty()) {
+            timer.stop();
+            return;
+        }
+        for (PositionClock clock : running) {
+            clock.fireTick();
+        }
+    }
+}
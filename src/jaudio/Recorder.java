@@ -1,21 +1,143 @@
 package jaudio;
 
 import javax.sound.sampled.*;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Reads data from the input channel and writes to the output stream
+ * <p>
+ * Unlike a {@link CaptureSession} it owns a thread and blocks on the line, since monitoring and overdub need
+ * reads paced by the device to keep the round trip short.
  */
 public class Recorder implements Runnable {
 
+    static final int MONITOR_CHUNK_MILLIS = 10;
+
     private MainController mainController;
-    TargetDataLine line;
+    AudioSource line;
     Thread thread;
+    private volatile AudioSource source;
+    final PositionClock clock = new PositionClock();
+    final StreamMetrics metrics = new StreamMetrics();
+    private volatile LevelMeter meter;
+    private boolean voiceDetection;
+    private boolean trimSilence;
+    private long[] voiceSegments = new long[0];
+    private boolean monitoring;
+    private boolean overdub;
+    private float monitorGain = 1;
+    private volatile AudioSink monitorSink;
+    private volatile PcmCache backing;
+    private volatile DuplexMonitor monitor;
 
     public Recorder(MainController mainController) {
         this.mainController = mainController;
+        metrics.register("Recorder");
+    }
+
+    public StreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the input level meters of the current or last take, or null before the first one
+     */
+    public LevelMeter getMeter() {
+        return meter;
+    }
+
+    /**
+     * Captures the next take from the given source instead of the default capture line, in the source's format.
+     * The source is closed with the take.
+     */
+    public void setSource(AudioSource source) {
+        this.source = source;
+    }
+
+    public boolean isVoiceDetection() {
+        return voiceDetection;
+    }
+
+    /**
+     * Runs a {@link VoiceActivityDetector} on every captured chunk.
+     */
+    public void setVoiceDetection(boolean voiceDetection) {
+        this.voiceDetection = voiceDetection;
+    }
+
+    public boolean isTrimSilence() {
+        return trimSilence;
+    }
+
+    /**
+     * Stores only voiced segments, with silence between them shortened to the detector's pre-roll and hangover.
+     * Implies voice detection.
+     */
+    public void setTrimSilence(boolean trimSilence) {
+        this.trimSilence = trimSilence;
+    }
+
+    /**
+     * @return start and end frame pairs of the voiced segments of the last take, in frames of the take as
+     * captured (before trimming). The take itself carries them as regions, see {@link AudioStore#getRegions()}.
+     */
+    public long[] getVoiceSegments() {
+        return voiceSegments;
+    }
+
+    public boolean isMonitoring() {
+        return monitoring;
+    }
+
+    /**
+     * Plays the input through to the playback line while capturing, see {@link DuplexMonitor}.
+     */
+    public void setMonitoring(boolean monitoring) {
+        this.monitoring = monitoring;
+    }
+
+    public float getMonitorGain() {
+        return monitorGain;
+    }
+
+    public void setMonitorGain(float monitorGain) {
+        this.monitorGain = monitorGain;
+    }
+
+    public boolean isOverdub() {
+        return overdub;
+    }
+
+    /**
+     * Records the next takes over the current one: the controller hands it to {@link #setBacking} on record.
+     */
+    public void setOverdub(boolean overdub) {
+        this.overdub = overdub;
+    }
+
+    /**
+     * Plays the given audio, in the capture format, under the next take from its first frame, and stores the take mixed
+     * over it frame for frame. Closed with the take.
+     */
+    public void setBacking(PcmCache backing) {
+        this.backing = backing;
+    }
+
+    /**
+     * Monitors the next take on the given sink instead of the default playback line. Closed with the take.
+     */
+    public void setMonitorSink(AudioSink monitorSink) {
+        this.monitorSink = monitorSink;
+    }
+
+    /**
+     * @return the play-through of the current or last take, with its round trip and drift, or null if none ran
+     */
+    public DuplexMonitor getMonitor() {
+        return monitor;
     }
 
     public void start() {
@@ -29,6 +151,14 @@ public class Recorder implements Runnable {
         thread = null;
     }
 
+    /**
+     * Stops capturing and unregisters the metrics MBean, for a controller that is no longer used.
+     */
+    public void dispose() {
+        stop();
+        metrics.unregister();
+    }
+
     private void shutDown(String message) {
         if ((mainController.errStr = message) != null && thread != null) {
             thread = null;
@@ -46,71 +176,237 @@ public class Recorder implements Runnable {
 
 
     public void run() {
+        PcmCache backing = this.backing;
+        this.backing = null;
+        try {
+            record(backing);
+        } finally {
+            closeBacking(backing);
+        }
+    }
 
-        mainController.duration = 0;
-        mainController.audioInputStream = null;
-
-        // define the required attributes for our line,
-        // and make sure a compatible line is supported.
+    private static void closeBacking(PcmCache backing) {
+        if (backing != null) {
+            try {
+                backing.close();
+            } catch (IOException ex) {
+                System.err.println("Unable to close backing: " + ex);
+            }
+        }
+    }
 
-        AudioFormat format = mainController.formatControls.getFormat();
-        DataLine.Info info = new DataLine.Info(TargetDataLine.class, format);
+    /**
+     * Captures one take. An overdub is stored mixed over the backing, which stays the controller's take until the
+     * mix replaces it.
+     */
+    private void record(PcmCache backing) {
+        PcmCache original = backing;
 
-        if (!AudioSystem.isLineSupported(info)) {
-            shutDown("Line matching " + info + " not supported.");
-            return;
+        mainController.duration = 0;
+        mainController.audioInputStream = null;
+        if (backing == null) {
+            // hand the previous take's segments back to the pool before this one needs them
+            mainController.setAudioStore(null);
         }
 
-        // get and open the target data line for capture.
+        // get and open the target data line for capture, unless a source was given.
 
-        try {
-            line = (TargetDataLine) AudioSystem.getLine(info);
-            line.open(format, line.getBufferSize());
-        } catch (LineUnavailableException ex) {
-            shutDown("Unable to open the line: " + ex);
-            return;
-        } catch (Exception ex) {
-            shutDown(ex.toString());
-            // JavaSound.showInfoDialog();
-            return;
+        AudioFormat format = mainController.formatControls.getFormat();
+        if (source != null) {
+            line = source;
+            source = null;
+            format = line.getFormat();
+        } else {
+            try {
+                line = LineSource.open(format);
+            } catch (LineUnavailableException ex) {
+                shutDown("Unable to open the line: " + ex.getMessage());
+                return;
+            } catch (Exception ex) {
+                shutDown(ex.toString());
+                // JavaSound.showInfoDialog();
+                return;
+            }
         }
 
         // play back the captured audio data
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        File captureFile = mainController.captureFile;
+        File target = captureFile;
+        WaveFileWriter writer = null;
+        AudioStore out = null;
+        if (captureFile != null) {
+            try {
+                if (backing != null) {
+                    // the backing may be this very file, the overdub takes its place once complete
+                    target = File.createTempFile("overdub", ".wav", captureFile.getAbsoluteFile().getParentFile());
+                }
+                writer = new WaveFileWriter(target, format);
+            } catch (Exception ex) {
+                if (target != captureFile) {
+                    target.delete();
+                }
+                line.close();
+                line = null;
+                shutDown("Unable to open capture file: " + ex);
+                return;
+            }
+        } else {
+            out = new AudioStore(format);
+        }
+        // peaks and spectrogram are accumulated chunk by chunk so the views grow while recording
+        PeakPyramid peaks = new PeakPyramid(format, 0);
+        Spectrogram spectrogram = new Spectrogram(format.getFrameRate());
+        mainController.peaks = peaks;
+        mainController.spectrogram = spectrogram;
+        PcmDecoder decoder = new PcmDecoder(format, true);
+        LevelMeter meter = new LevelMeter(format);
+        this.meter = meter;
         int frameSizeInBytes = format.getFrameSize();
         int bufferLengthInFrames = line.getBufferSize() / 8;
+        if (monitoring || backing != null) {
+            // the round trip is a few chunks, keep them short
+            bufferLengthInFrames = Math.max(1, Math.min(bufferLengthInFrames, (int) (format.getFrameRate() * MONITOR_CHUNK_MILLIS / 1000)));
+        }
         int bufferLengthInBytes = bufferLengthInFrames * frameSizeInBytes;
         byte[] data = new byte[bufferLengthInBytes];
+        float[] samples = new float[bufferLengthInFrames * format.getChannels()];
+        VoiceActivityDetector vad = voiceDetection || trimSilence ? new VoiceActivityDetector(format) : null;
+        byte[] kept = data;
+        float[] keptSamples = samples;
+        if (vad != null && trimSilence) {
+            kept = new byte[vad.getOutputCapacity(bufferLengthInBytes)];
+            keptSamples = new float[kept.length / frameSizeInBytes * format.getChannels()];
+        }
         int numBytesRead;
+        int lineBufferSize = line.getBufferSize();
+        boolean overrun = false;
+        metrics.lineOpened(lineBufferSize);
+        if (backing != null && !backing.getFormat().matches(format)) {
+            mainController.reportStatus("Recording without overdub, the take is not in the capture format " + format);
+            backing = null;
+        }
+        // an overdub is stored mixed over the backing frames it lines up with
+        PcmEncoder encoder = backing != null ? new PcmEncoder(format) : null;
+        byte[] mixed = backing != null ? new byte[bufferLengthInBytes] : null;
+        float[] mixedSamples = backing != null ? new float[samples.length] : null;
+        long layered = 0;
+        DuplexMonitor monitor = openMonitor(format, bufferLengthInBytes, backing);
 
+        clock.attach(line);
+        if (monitor != null) {
+            try {
+                monitor.start(line);
+            } catch (IOException ex) {
+                monitor = closeMonitor(monitor, "Recording without monitor: " + ex.getMessage());
+            }
+        }
         line.start();
 
         while (thread != null) {
+            // a full line buffer means the device is dropping frames
+            int fill = line.available();
+            metrics.bufferFill(fill);
+            if (fill >= lineBufferSize) {
+                if (!overrun) {
+                    overrun = true;
+                    metrics.overrun();
+                }
+            } else {
+                overrun = false;
+            }
+            long readStart = System.nanoTime();
             if ((numBytesRead = line.read(data, 0, bufferLengthInBytes)) == -1) {
                 break;
             }
-            out.write(data, 0, numBytesRead);
+            long readEnd = System.nanoTime();
+            metrics.chunk(numBytesRead, readEnd - readStart);
+            meter.update(data, 0, numBytesRead);
+            int numFramesRead = numBytesRead / frameSizeInBytes;
+            decoder.decode(data, 0, numBytesRead, samples, 0);
+            if (monitor != null) {
+                try {
+                    monitor.process(samples, numFramesRead, line.available());
+                } catch (IOException ex) {
+                    monitor = closeMonitor(monitor, "Monitor stopped: " + ex.getMessage());
+                }
+            }
+            byte[] take = data;
+            float[] takeSamples = samples;
+            if (backing != null) {
+                try {
+                    layer(backing, layered, samples, numFramesRead, mixed, mixedSamples, decoder, encoder);
+                    take = mixed;
+                    takeSamples = mixedSamples;
+                    layered += numFramesRead;
+                } catch (IOException ex) {
+                    mainController.reportStatus("Overdub stopped, recording the input only: " + ex.getMessage());
+                    backing = null;
+                }
+            }
+            int numBytesKept = numBytesRead;
+            if (vad != null) {
+                if (kept != data) {
+                    // speech is detected in the input, the kept bytes are the take's
+                    numBytesKept = vad.process(take, 0, samples, 0, numFramesRead, kept, 0);
+                    decoder.decode(kept, 0, numBytesKept, keptSamples, 0);
+                    take = kept;
+                    takeSamples = keptSamples;
+                } else {
+                    vad.analyze(samples, 0, numFramesRead);
+                }
+            }
+            if (!store(writer, out, take, numBytesKept, format, peaks, spectrogram, takeSamples)) {
+                break;
+            }
+            metrics.conversion(System.nanoTime() - readEnd);
+            clock.count(numFramesRead);
         }
 
         // we reached the end of the stream. stop and close the line.
         line.stop();
+        if (monitor != null) {
+            closeMonitor(monitor, null);
+        }
+        clock.detach();
         line.close();
         line = null;
 
-        // stop and close the output stream
-        try {
-            out.flush();
-            out.close();
-        } catch (IOException ex) {
-            mainController.reportStatus("Error on inputstream  " + ex.getMessage());
+        if (vad != null) {
+            int numBytesKept = vad.finish(kept != data ? kept : null, 0);
+            decoder.decode(kept, 0, numBytesKept, keptSamples, 0);
+            store(writer, out, kept, numBytesKept, format, peaks, spectrogram, keptSamples);
+            voiceSegments = vad.getSegments();
+            // saved with the take as cue regions, in frames of the take as stored
+            long[] regions = kept != data ? vad.getTrimmedSegments() : voiceSegments;
+            if (writer != null) {
+                writer.setRegions(regions);
+            } else {
+                out.setRegions(regions);
+            }
+        }
+        if (backing != null) {
+            // the rest of the backing, so the overdub does not cut the original short
+            try {
+                int numFrames;
+                while ((numFrames = backing.read(layered, data, 0, bufferLengthInFrames)) > 0) {
+                    decoder.decode(data, 0, numFrames * frameSizeInBytes, samples, 0);
+                    if (!store(writer, out, data, numFrames * frameSizeInBytes, format, peaks, spectrogram, samples)) {
+                        break;
+                    }
+                    layered += numFrames;
+                }
+            } catch (IOException ex) {
+                mainController.reportStatus("Error reading the end of the backing " + ex.getMessage());
+            }
+        }
+        if (writer != null) {
+            finishFileCapture(writer, target, captureFile, peaks, original);
+        } else {
+            finishMemoryCapture(out);
+        }
+        if (mainController.audioInputStream == null) {
+            return;
         }
-
-        // load bytes into the audio input stream for playback
-
-        mainController.audioBytes = out.toByteArray();
-        System.out.println(out.size());
-        ByteArrayInputStream bais = new ByteArrayInputStream(mainController.audioBytes);
-        mainController.audioInputStream = new AudioInputStream(bais, format, mainController.audioBytes.length / frameSizeInBytes);
 
         long milliseconds = (long) ((mainController.audioInputStream.getFrameLength() * 1000) / format.getFrameRate());
         mainController.duration = milliseconds / 1000.0;
@@ -120,14 +416,150 @@ public class Recorder implements Runnable {
         } catch (Exception ex) {
             mainController.reportStatus("Error in resetting inputStream " + ex.getMessage());
         }
+        // the peaks are already complete, no need to decode the take again
+        mainController.audioData = null;
+        if (mainController.isDrawingRequired) {
+            mainController.samplingGraph.renderWaveForm();
+        }
+
+    }
+
+    /**
+     * Opens the play-through of this take if monitoring or overdubbing, on the given sink or the default line.
+     *
+     * @return the monitor, or null to record without one
+     */
+    private DuplexMonitor openMonitor(AudioFormat format, int chunkBytes, PcmCache backing) {
+        AudioSink sink = monitorSink;
+        monitorSink = null;
+        if (!monitoring && backing == null) {
+            if (sink != null) {
+                sink.close();
+            }
+            return null;
+        }
         try {
-            if (mainController.isDrawingRequired) {
-                mainController.samplingGraph.createWaveForm(mainController.audioBytes);
+            if (sink == null) {
+                // half of it is kept queued, two chunks so a chunk's read never runs it dry
+                sink = LineSink.open(format, 4 * chunkBytes);
             }
+            DuplexMonitor monitor = new DuplexMonitor(format, sink, backing, 0);
+            monitor.setGain(monitoring ? monitorGain : 0);
+            this.monitor = monitor;
+            return monitor;
+        } catch (Exception ex) {
+            mainController.reportStatus("Recording without monitor: " + ex.getMessage());
+            if (sink != null) {
+                sink.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param message why the monitor stops early, or null at the end of the take
+     * @return null, the take goes on without the monitor
+     */
+    private DuplexMonitor closeMonitor(DuplexMonitor monitor, String message) {
+        monitor.close(line);
+        if (message != null) {
+            mainController.reportStatus(message);
+        }
+        return null;
+    }
 
-        } catch (Exception e) {
-            mainController.reportStatus("Error in drawing waveform " + e.getMessage());
+    /**
+     * Mixes the backing frames from position under a captured chunk into mix and bytes, for an overdub. Past the end
+     * of the backing the chunk is kept as it is.
+     */
+    private static void layer(PcmCache backing, long position, float[] samples, int frames, byte[] bytes, float[] mix,
+                              PcmDecoder decoder, PcmEncoder encoder) throws IOException {
+        int frameSize = backing.getFormat().getFrameSize();
+        int channels = backing.getFormat().getChannels();
+        int read = 0;
+        int n;
+        while (read < frames && (n = backing.read(position + read, bytes, read * frameSize, frames - read)) > 0) {
+            read += n;
         }
+        decoder.decode(bytes, 0, read * frameSize, mix, 0);
+        for (int i = 0; i < read * channels; i++) {
+            mix[i] += samples[i];
+        }
+        System.arraycopy(samples, read * channels, mix, read * channels, (frames - read) * channels);
+        encoder.encode(mix, 0, frames * channels, bytes, 0);
+    }
+
+    /**
+     * Appends kept bytes to the take and its views.
+     *
+     * @return false if the capture file could not be written
+     */
+    private boolean store(WaveFileWriter writer, AudioStore out, byte[] bytes, int length, AudioFormat format, PeakPyramid peaks,
+                          Spectrogram spectrogram, float[] samples) {
+        if (length == 0) {
+            return true;
+        }
+        if (writer != null) {
+            try {
+                writer.write(bytes, 0, length);
+            } catch (IOException ex) {
+                shutDown("Error writing capture file " + ex.getMessage());
+                return false;
+            }
+        } else {
+            out.write(bytes, 0, length);
+        }
+        int frames = length / format.getFrameSize();
+        peaks.append(samples, 0, frames);
+        spectrogram.append(samples, 0, frames, format.getChannels());
+        return true;
+    }
 
+    private void finishMemoryCapture(AudioStore out) {
+        // the segments are played and saved from where they are, nothing is copied
+        mainController.setAudioStore(out);
+    }
+
+    /**
+     * @param target   the file written, a temporary one next to captureFile for an overdub
+     * @param original the backing of an overdub, closed before the take replaces it
+     */
+    private void finishFileCapture(WaveFileWriter writer, File target, File captureFile, PeakPyramid peaks, PcmCache original) {
+        // patch the final header, the take is then a regular wav file
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            mainController.reportStatus("Error on closing capture file " + ex.getMessage());
+            if (target != captureFile) {
+                target.delete();
+            }
+            return;
+        }
+        if (target != captureFile) {
+            closeBacking(original);
+            try {
+                Files.move(target.toPath(), captureFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                mainController.reportStatus("Unable to replace " + captureFile + ", the overdub is kept in " + target + ": " + ex.getMessage());
+                captureFile = target;
+            }
+        }
+        // the peaks were built while recording, keep them for when the take is opened again
+        PeakCache peakCache = mainController.peakCache;
+        if (peakCache != null) {
+            try {
+                peakCache.store(captureFile, peaks);
+            } catch (IOException ex) {
+                System.err.println("Unable to store peaks of " + captureFile + ": " + ex);
+            }
+        }
+        mainController.file = captureFile;
+        // the take replaces the one it was overdubbed on
+        mainController.setAudioStore(null);
+        try {
+            mainController.audioInputStream = AudioSystem.getAudioInputStream(captureFile);
+        } catch (Exception ex) {
+            mainController.reportStatus("Error on reopening capture file " + ex.getMessage());
+        }
     }
 }
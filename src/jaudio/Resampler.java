@@ -0,0 +1,427 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streaming polyphase windowed-sinc sample rate converter.
+ * <p>
+ * The ratio out/in is reduced to L/M and a Kaiser windowed sinc prototype is precomputed as a bank of L
+ * filters of {@link #getTaps()} taps each, one per output phase, so every output sample is a single dot
+ * product. 44.1 kHz to 48 kHz for instance is 160/147 with 160 phases. Ratios that do not reduce to at most
+ * {@link #MAX_PHASES} phases are approximated with that many, an error below 1/(2 M) of the rate. The
+ * cutoff follows the lower of the two Nyquist frequencies, so downsampling does not alias.
+ * <p>
+ * Input is pushed block by block through {@link #process}, in interleaved normalized floats, and whatever
+ * output is complete comes back at once; output stays aligned with the input and {@link #finish} flushes
+ * the tail, so a whole stream converts to exactly ceil(frames * L / M) frames. Nothing is allocated after
+ * construction. An instance is not thread safe.
+ */
+public class Resampler {
+
+    public static final int DEFAULT_TAPS = 32;
+    static final int MAX_PHASES = 4096;
+    static final int BLOCK_FRAMES = 1024;
+    static final double KAISER_BETA = 8.6;
+
+    private final float inRate;
+    private final float outRate;
+    private final int channels;
+    private final int taps;
+    private final int phases;
+    private final int step;
+    private final float[] bank;
+    private final float[][] history;
+    private int fill;
+    private int pos;
+    private int phase;
+    private long framesIn;
+    private long framesOut;
+
+    /**
+     * @param taps filter length per phase, even; 16 is fast, 32 the default and 64 transparent
+     */
+    public Resampler(float inRate, float outRate, int channels, int taps) {
+        if (inRate <= 0 || outRate <= 0 || channels <= 0 || taps < 4 || taps % 2 != 0) {
+            throw new IllegalArgumentException("Unsupported conversion: " + inRate + " Hz to " + outRate + " Hz, " + channels + " channels, "
+                    + taps + " taps");
+        }
+        this.inRate = inRate;
+        this.outRate = outRate;
+        this.channels = channels;
+        this.taps = taps;
+        long l = Math.round(outRate);
+        long m = Math.round(inRate);
+        boolean integral = l == outRate && m == inRate;
+        if (integral) {
+            long g = gcd(l, m);
+            l /= g;
+            m /= g;
+        }
+        if (!integral || l > MAX_PHASES) {
+            l = MAX_PHASES;
+            m = Math.max(1, Math.round(MAX_PHASES * (double) inRate / outRate));
+        }
+        this.phases = (int) l;
+        this.step = (int) m;
+        this.bank = design(phases, step, taps);
+        this.history = new float[channels][taps + BLOCK_FRAMES];
+        reset();
+    }
+
+    public Resampler(float inRate, float outRate, int channels) {
+        this(inRate, outRate, channels, DEFAULT_TAPS);
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Builds the phase filters, each normalized to unity gain at DC.
+     */
+    private static float[] design(int phases, int step, int taps) {
+        // cutoff in units of the input Nyquist, a little below the lower Nyquist to leave room for the transition
+        double cutoff = phases == step ? 1 : Math.min(1, phases / (double) step) * (1 - 2.5 / taps);
+        int half = taps / 2;
+        float[] bank = new float[phases * taps];
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                double x = j - (half - 1) - p / (double) phases;
+                double r = x / half;
+                double window = Math.abs(r) >= 1 ? 0 : besselI0(KAISER_BETA * Math.sqrt(1 - r * r)) / i0Beta;
+                double h = cutoff * sinc(cutoff * x) * window;
+                bank[p * taps + j] = (float) h;
+                sum += h;
+            }
+            for (int j = 0; j < taps; j++) {
+                bank[p * taps + j] /= sum;
+            }
+        }
+        return bank;
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50 && term > 1e-12 * sum; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    public float getInRate() {
+        return inRate;
+    }
+
+    public float getOutRate() {
+        return outRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getTaps() {
+        return taps;
+    }
+
+    /**
+     * @return L of the reduced ratio L/M
+     */
+    public int getPhases() {
+        return phases;
+    }
+
+    /**
+     * @return M of the reduced ratio L/M
+     */
+    public int getStep() {
+        return step;
+    }
+
+    /**
+     * @return input frames that must arrive after an instant before its output can be produced
+     */
+    public int getLatencyFrames() {
+        return taps / 2;
+    }
+
+    /**
+     * @return output frames of a whole stream of the given length
+     */
+    public long getOutputLength(long inFrames) {
+        return (inFrames * phases + step - 1) / step;
+    }
+
+    /**
+     * @return output frames one call of {@link #process} with the given input can return at most
+     */
+    public int getOutputCapacity(int inFrames) {
+        return (int) ((long) inFrames * phases / step) + 2;
+    }
+
+    /**
+     * Forgets all input, ready for a new stream.
+     */
+    public void reset() {
+        for (float[] h : history) {
+            Arrays.fill(h, 0);
+        }
+        // the first output is centered on the first input frame, with zeros before it
+        fill = taps / 2 - 1;
+        pos = 0;
+        phase = 0;
+        framesIn = 0;
+        framesOut = 0;
+    }
+
+    /**
+     * Converts interleaved frames, writing whatever output is complete.
+     *
+     * @param out room for {@link #getOutputCapacity}(inFrames) interleaved frames
+     * @return the number of frames written to out
+     */
+    public int process(float[] in, int inOffset, int inFrames, float[] out, int outOffset) {
+        int produced = 0;
+        for (int done = 0; done < inFrames; ) {
+            int n = Math.min(inFrames - done, history[0].length - fill);
+            int base = inOffset + done * channels;
+            for (int c = 0; c < channels; c++) {
+                float[] h = history[c];
+                for (int i = 0, p = base + c; i < n; i++, p += channels) {
+                    h[fill + i] = in[p];
+                }
+            }
+            fill += n;
+            done += n;
+            framesIn += n;
+            produced += drain(out, outOffset + produced * channels, Long.MAX_VALUE);
+        }
+        return produced;
+    }
+
+    /**
+     * Flushes the output still held back by the filter length, after the last input frame.
+     *
+     * @param out room for {@link #getOutputCapacity}({@link #getTaps()}) interleaved frames
+     * @return the number of frames written to out
+     */
+    public int finish(float[] out, int outOffset) {
+        for (float[] h : history) {
+            Arrays.fill(h, fill, fill + taps, 0);
+        }
+        fill += taps;
+        return drain(out, outOffset, getOutputLength(framesIn));
+    }
+
+    private int drain(float[] out, int outOffset, long limit) {
+        float[] bank = this.bank;
+        int taps = this.taps;
+        int produced = 0;
+        int o = outOffset;
+        while (pos + taps <= fill && framesOut < limit) {
+            int k = phase * taps;
+            for (int c = 0; c < channels; c++) {
+                float[] h = history[c];
+                float acc = 0;
+                for (int j = 0; j < taps; j++) {
+                    acc += bank[k + j] * h[pos + j];
+                }
+                out[o++] = acc;
+            }
+            phase += step;
+            pos += phase / phases;
+            phase %= phases;
+            produced++;
+            framesOut++;
+        }
+        // keep the taps the next output needs at the front
+        int keep = Math.max(0, fill - pos);
+        for (float[] h : history) {
+            System.arraycopy(h, Math.min(pos, fill), h, 0, keep);
+        }
+        pos -= fill - keep;
+        fill = keep;
+        return produced;
+    }
+
+    /**
+     * Converts a PCM stream to the target format: sample rate with a {@link Resampler}, sample size, encoding and
+     * byte order through {@link PcmDecoder} and {@link PcmEncoder}, mono to many channels by copying and many to
+     * mono by averaging. Anything else is left to AudioSystem.
+     */
+    public static AudioInputStream convert(AudioInputStream source, AudioFormat target) {
+        AudioFormat format = source.getFormat();
+        if (format.matches(target)) {
+            return source;
+        }
+        int in = format.getChannels();
+        int out = target.getChannels();
+        try {
+            if (target.getSampleRate() > 0 && format.getSampleRate() > 0 && target.getFrameRate() == target.getSampleRate()
+                    && (in == out || in == 1 || out == 1)) {
+                ConvertingStream stream = new ConvertingStream(source, target);
+                return new AudioInputStream(stream, target, stream.getFrameLength());
+            }
+        } catch (IllegalArgumentException ex) {
+            // not plain PCM on one side
+        }
+        return AudioSystem.getAudioInputStream(target, source);
+    }
+
+    /**
+     * Decodes, remixes, resamples and encodes one block at a time.
+     */
+    private static class ConvertingStream extends InputStream {
+
+        private final AudioInputStream source;
+        private final PcmDecoder decoder;
+        private final PcmEncoder encoder;
+        private final Resampler resampler;
+        private final int inChannels;
+        private final int outChannels;
+        private final int inFrameSize;
+        private final byte[] raw;
+        private final float[] decoded;
+        private final float[] mixed;
+        private final float[] resampled;
+        private final byte[] encoded;
+        private int rawFill;
+        private int encodedPos;
+        private int encodedLength;
+        private boolean eof;
+        private boolean finished;
+
+        ConvertingStream(AudioInputStream source, AudioFormat target) {
+            AudioFormat format = source.getFormat();
+            this.source = source;
+            this.decoder = new PcmDecoder(format, true);
+            this.encoder = new PcmEncoder(target);
+            this.inChannels = format.getChannels();
+            this.outChannels = target.getChannels();
+            this.inFrameSize = format.getFrameSize();
+            this.resampler = format.getSampleRate() == target.getSampleRate() ? null
+                    : new Resampler(format.getSampleRate(), target.getSampleRate(), outChannels);
+            this.raw = new byte[BLOCK_FRAMES * inFrameSize];
+            this.decoded = new float[BLOCK_FRAMES * inChannels];
+            this.mixed = new float[BLOCK_FRAMES * outChannels];
+            int capacity = resampler == null ? BLOCK_FRAMES : Math.max(resampler.getOutputCapacity(BLOCK_FRAMES),
+                    resampler.getOutputCapacity(resampler.getTaps()));
+            this.resampled = resampler == null ? mixed : new float[capacity * outChannels];
+            this.encoded = new byte[capacity * target.getFrameSize()];
+        }
+
+        long getFrameLength() {
+            long length = source.getFrameLength();
+            if (length == AudioSystem.NOT_SPECIFIED || resampler == null) {
+                return length;
+            }
+            return resampler.getOutputLength(length);
+        }
+
+        /**
+         * Converts the next block into encoded.
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            while (!finished) {
+                int numBytesRead = eof ? -1 : source.read(raw, rawFill, raw.length - rawFill);
+                int frames;
+                if (numBytesRead == -1) {
+                    eof = true;
+                    frames = rawFill / inFrameSize;
+                } else {
+                    rawFill += numBytesRead;
+                    frames = rawFill / inFrameSize;
+                    if (frames < BLOCK_FRAMES / 4 && rawFill < raw.length) {
+                        // too little for a worthwhile block, read more first
+                        continue;
+                    }
+                }
+                decoder.decode(raw, 0, frames * inFrameSize, decoded, 0);
+                int used = frames * inFrameSize;
+                System.arraycopy(raw, used, raw, 0, rawFill - used);
+                rawFill -= used;
+                remix(frames);
+                int outFrames = frames;
+                if (resampler != null) {
+                    outFrames = resampler.process(mixed, 0, frames, resampled, 0);
+                    if (eof) {
+                        outFrames += resampler.finish(resampled, outFrames * outChannels);
+                    }
+                }
+                if (eof) {
+                    finished = true;
+                }
+                encodedLength = encoder.encode(resampled, 0, outFrames * outChannels, encoded, 0);
+                encodedPos = 0;
+                if (encodedLength > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void remix(int frames) {
+            if (inChannels == outChannels) {
+                System.arraycopy(decoded, 0, mixed, 0, frames * inChannels);
+            } else if (inChannels == 1) {
+                for (int f = 0, p = 0; f < frames; f++) {
+                    for (int c = 0; c < outChannels; c++) {
+                        mixed[p++] = decoded[f];
+                    }
+                }
+            } else {
+                float scale = 1f / inChannels;
+                for (int f = 0, p = 0; f < frames; f++) {
+                    float sum = 0;
+                    for (int c = 0; c < inChannels; c++) {
+                        sum += decoded[p++];
+                    }
+                    mixed[f] = sum * scale;
+                }
+            }
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (encodedPos == encodedLength && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, encodedLength - encodedPos);
+            System.arraycopy(encoded, encodedPos, b, off, n);
+            encodedPos += n;
+            return n;
+        }
+
+        public int available() {
+            return encodedLength - encodedPos;
+        }
+
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
@@ -1,68 +1,232 @@
 package jaudio;
 
+import javax.sound.sampled.AudioInputStream;
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.font.FontRenderContext;
 import java.awt.font.LineBreakMeasurer;
 import java.awt.font.TextAttribute;
 import java.awt.font.TextLayout;
-import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.text.AttributedCharacterIterator;
 import java.text.AttributedString;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Render a WaveForm.
  */
-class SamplingGraph extends JPanel implements Runnable {
+class SamplingGraph extends JPanel {
 
     private static final long serialVersionUID = 1L;
+    private static final double LIVE_WINDOW_SEC = 10.0;
+    private static final int METER_WIDTH = 6;
+    private static final double METER_FLOOR_DB = -60.0;
+    // one spectrogram at a time, its tiles run in parallel on the common pool
+    private static final ExecutorService spectrogramExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Spectrogram");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private MainController mainController;
-    private Thread thread;
+    private volatile PositionClock clock;
+    private final Runnable tick = this::positionChanged;
     private final Font font12 = new Font("serif", Font.PLAIN, 12);
     final Color jfcBlue = new Color(204, 204, 255);
     final Color pink = new Color(255, 175, 175);
+    private final Font font18 = new Font("serif", Font.BOLD, 18);
+    private final BasicStroke cursorStroke = new BasicStroke(3);
+    private BufferedImage waveImage;
+    private PeakPyramid imagePeaks;
+    private long imageFrames;
+    private long imageSpan;
+    private float[] columnMin;
+    private float[] columnMax;
+    private volatile boolean waveDirty;
+    private LevelMeter.Levels levels;
+    private Spectrogram computing;
 
     public SamplingGraph(MainController mainController) {
         this.mainController = mainController;
         setBackground(new Color(20, 20, 20));
+        addMouseListener(new MouseAdapter() {
+            public void mousePressed(MouseEvent e) {
+                seekTo(e.getX());
+            }
+        });
     }
 
     /**
-     * Creates the wave form.
-     *
-     * @param audioBytes the audio bytes
+     * Plays from the clicked position of the waveform.
      */
-    public void createWaveForm(byte[] audioBytes) throws Exception {
+    private void seekTo(int x) {
+        if (mainController.recorder.thread != null || mainController.peaks == null || !mainController.playBtn.isEnabled() || getWidth() <= 0) {
+            return;
+        }
+        mainController.player.playFrom(mainController.duration * x / getWidth());
+    }
 
-        mainController.lines.removeAllElements(); // clear the old vector
+    /**
+     * Creates the wave form. The peaks of a file are read in the background and the waveform fills in as they come.
+     * A file whose peaks are cached is drawn without reading its samples; its spectrogram waits for
+     * {@link #requestSpectrogram()}.
+     *
+     * @param store the take kept in memory, or null to read the current file or audio input stream
+     */
+    public void createWaveForm(AudioStore store) throws Exception {
 
-        Dimension d = getSize();
-        int w = d.width;
-        int h = d.height - 15;
         mainController.audioData = null;
+        mainController.spectrogram = null;
+        if (store != null) {
+            mainController.peaks = PeakPyramid.build(store);
+        } else if (mainController.file != null) {
+            if (!loadWaveForm(mainController.file)) {
+                // the samples are read anyway
+                computeSpectrogram(mainController.file);
+            }
+        } else {
+            mainController.peaks = PeakPyramid.build(mainController.audioInputStream);
+        }
+        renderWaveForm();
+    }
 
-        mainController.audioData = mainController.waveData.extractFloatDataFromAudioInputStream(mainController.audioInputStream);
-        int frames_per_pixel = mainController.waveData.getAudioBytes().length / mainController.waveData.getFormat().getFrameSize() / w;
-        byte my_byte = 0;
-        double y_last = 0;
-        // we need the format object
-        int numChannels = mainController.waveData.getFormat().getChannels();
-        for (double x = 0; x < w && mainController.audioData != null; x++) {
-            int idx = (int) (frames_per_pixel * numChannels * x);
-            if (mainController.waveData.getFormat().getSampleSizeInBits() == 8) {
-                my_byte = (byte) mainController.audioData[idx];
-            } else {
-                my_byte = (byte) (128 * mainController.audioData[idx] / 32768);
+    /**
+     * Takes the peaks of a file from its sidecar, or starts reading them, repainting as they come in.
+     *
+     * @return true if the peaks came from the sidecar
+     */
+    private boolean loadWaveForm(File file) {
+        AudioInputStream header = mainController.audioInputStream;
+        PeakCache peakCache = mainController.peakCache;
+        PeakPyramid cached = peakCache == null ? null : peakCache.load(file, header.getFormat());
+        if (cached != null) {
+            mainController.peaks = cached;
+            return true;
+        }
+        LoadTask task = new LoadTask(file, header.getFormat(), header.getFrameLength());
+        task.setPeakCache(peakCache);
+        mainController.peaks = task.getPeaks();
+        mainController.loadTask = task;
+        task.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                renderWaveForm();
+            } else if ("state".equals(evt.getPropertyName()) && evt.getNewValue() == SwingWorker.StateValue.DONE) {
+                if (mainController.loadTask == task) {
+                    mainController.loadTask = null;
+                }
+                if (!task.isCancelled()) {
+                    try {
+                        task.get();
+                    } catch (Exception ex) {
+                        mainController.reportStatus("Error in loading file " + ex.getCause());
+                    }
+                }
+                renderWaveForm();
             }
-            double y_new = (double) (h * (128 - my_byte) / 256);
-            mainController.lines.add(new Line2D.Double(x, y_last, x, y_new));
-            y_last = y_new;
+        });
+        task.execute();
+        return false;
+    }
+
+    /**
+     * Computes the spectrogram of the current file if it has none yet, such as after a warm open.
+     */
+    public void requestSpectrogram() {
+        if (mainController.spectrogram == null && mainController.recorder.thread == null) {
+            computeSpectrogram(mainController.file);
+            if (mainController.spectrogramGraph != null) {
+                mainController.spectrogramGraph.repaint();
+            }
+        }
+    }
+
+    /**
+     * Computes the spectrogram of a loaded WAV file in the background, tiles show up as the parallel tasks finish.
+     */
+    private void computeSpectrogram(File file) {
+        if (file == null) {
+            return;
+        }
+        final MappedWaveReader reader;
+        try {
+            reader = new MappedWaveReader(file);
+        } catch (Exception ex) {
+            return; // no spectrogram for files that are not plain PCM wave
+        }
+        Spectrogram previous = computing;
+        if (previous != null) {
+            // the file it belongs to is no longer shown
+            previous.cancel();
         }
-        // just need lines object to repaint()
+        Spectrogram spectrogram = new Spectrogram(reader.getFormat().getFrameRate());
+        mainController.spectrogram = spectrogram;
+        computing = spectrogram;
+        spectrogramExecutor.execute(() -> {
+            try (MappedWaveReader r = reader) {
+                spectrogram.computeAll(r);
+            } catch (Exception ex) {
+                mainController.reportStatus("Error in computing spectrogram " + ex.getMessage());
+            }
+            if (mainController.spectrogramGraph != null) {
+                mainController.spectrogramGraph.repaint();
+            }
+        });
+    }
+
+    /**
+     * Marks the cached waveform image stale. The next paint renders it again from the peak pyramid, one min/max column per
+     * pixel, and repaints after that only blit the image and draw the position cursor.
+     */
+    public void renderWaveForm() {
+        waveDirty = true;
         repaint();
     }
 
+    /**
+     * Returns the cached waveform image for the frame range [0, spanFrames), rendering it again only if the peaks, the
+     * span or the panel size changed. Called on the event dispatch thread only.
+     */
+    private BufferedImage waveImage(int w, int h, long spanFrames) {
+        PeakPyramid peaks = mainController.peaks;
+        if (peaks == null || w <= 0 || h <= 0) {
+            return null;
+        }
+        long frames = peaks.getFrameLength();
+        BufferedImage image = waveImage;
+        boolean sameSize = image != null && image.getWidth() == w && image.getHeight() == h;
+        if (!waveDirty && sameSize && peaks == imagePeaks && frames == imageFrames && spanFrames == imageSpan) {
+            return image;
+        }
+        waveDirty = false;
+        if (!sameSize) {
+            image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            columnMin = new float[w];
+            columnMax = new float[w];
+        }
+        Graphics2D g2 = image.createGraphics();
+        g2.setComposite(AlphaComposite.Clear);
+        g2.fillRect(0, 0, w, h);
+        g2.setComposite(AlphaComposite.SrcOver);
+        g2.setColor(jfcBlue);
+        int columns = peaks.render(0, spanFrames, w, columnMin, columnMax, null);
+        double mid = h / 2.0;
+        for (int x = 0; x < columns; x++) {
+            int yTop = (int) (mid - columnMax[x] * mid);
+            int yBottom = (int) (mid - columnMin[x] * mid);
+            g2.drawLine(x, yTop, x, yBottom);
+        }
+        g2.dispose();
+        waveImage = image;
+        imagePeaks = peaks;
+        imageFrames = frames;
+        imageSpan = spanFrames;
+        return image;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -83,7 +247,7 @@ class SamplingGraph extends JPanel implements Runnable {
 
         if (mainController.errStr != null) {
             g2.setColor(jfcBlue);
-            g2.setFont(new Font("serif", Font.BOLD, 18));
+            g2.setFont(font18);
             g2.drawString("ERROR", 5, 20);
             AttributedString as = new AttributedString(mainController.errStr);
             as.addAttribute(TextAttribute.FONT, font12, 0, mainController.errStr.length());
@@ -102,9 +266,21 @@ class SamplingGraph extends JPanel implements Runnable {
             }
         } else if (mainController.recorder.thread != null) {
             // paint during capture
+            LevelMeter meter = mainController.recorder.getMeter();
             g2.setColor(Color.black);
             g2.setFont(font12);
-            g2.drawString("Length: " + mainController.seconds, 3, h - 4);
+            g2.drawString("Length: " + mainController.seconds + clipText(meter), 3, h - 4);
+
+            // .. the waveform grows as the recorder feeds the peaks, then compresses once it is full ..
+            PeakPyramid peaks = mainController.peaks;
+            if (peaks != null) {
+                long window = (long) (LIVE_WINDOW_SEC * peaks.getFormat().getFrameRate());
+                BufferedImage image = waveImage(w, h - INFOPAD, Math.max(window, peaks.getFrameLength()));
+                if (image != null) {
+                    g2.drawImage(image, 0, 0, null);
+                }
+            }
+            drawMeters(g2, meter, w, h - INFOPAD);
         } else {
             // paint during playback
             g2.setColor(Color.black);
@@ -112,72 +288,115 @@ class SamplingGraph extends JPanel implements Runnable {
             g2.drawString("Length: " + mainController.duration + "    Position: " + mainController.seconds, 3, h - 4);
 
             if (mainController.audioInputStream != null) {
-                // .. render sampling graph ..
-                g2.setColor(jfcBlue);
-                for (int i = 1; i < mainController.lines.size(); i++) {
-                    g2.draw((Line2D) mainController.lines.get(i));
+                // .. render sampling graph, re-rendered from the peaks only when they or the size change, over the whole
+                // length while a file is still loading ..
+                PeakPyramid peaks = mainController.peaks;
+                BufferedImage image = peaks == null ? null : waveImage(w, h - INFOPAD,
+                        Math.max(peaks.getFrameLength(), (long) (mainController.duration * peaks.getFormat().getFrameRate())));
+                if (image != null) {
+                    g2.drawImage(image, 0, 0, null);
                 }
 
                 // .. draw current position ..
                 if (mainController.seconds != 0) {
-                    double loc = mainController.seconds / mainController.duration * w;
+                    int loc = (int) (mainController.seconds / mainController.duration * w);
                     g2.setColor(pink);
-                    g2.setStroke(new BasicStroke(3));
-                    g2.draw(new Line2D.Double(loc, 0, loc, h - INFOPAD - 2));
+                    g2.setStroke(cursorStroke);
+                    g2.drawLine(loc, 0, loc, h - INFOPAD - 2);
                 }
             }
+            if (mainController.player.thread != null) {
+                drawMeters(g2, mainController.player.getMeter(), w, h - INFOPAD);
+            }
         }
     }
 
-    public void start() {
-        thread = new Thread(this);
-        thread.setName("SamplingGraph");
-        thread.start();
-        mainController.seconds = 0;
+    /**
+     * Reads the meter into the reused snapshot.
+     *
+     * @return false if there is nothing to show yet
+     */
+    private boolean readLevels(LevelMeter meter) {
+        if (meter == null) {
+            return false;
+        }
+        levels = meter.read(levels);
+        return levels.sequence > 0;
     }
 
-    public void stop() {
-        if (thread != null) {
-            thread.interrupt();
+    private String clipText(LevelMeter meter) {
+        if (!readLevels(meter) || levels.getClippedTotal() == 0) {
+            return "";
         }
-        thread = null;
+        return "    Clipped: " + levels.getClippedTotal();
     }
 
-    /*
-     * (non-Javadoc)
-     *
-     * @see java.lang.Runnable#run()
+    /**
+     * Draws one vertical meter per channel at the right edge: RMS as the solid bar, the peak above it, a peak hold
+     * tick and a red clip light on top once any sample of the take clipped.
      */
-    public void run() {
-        mainController.seconds = 0;
-        while (thread != null) {
-            if ((mainController.player.line != null) && (mainController.player.line.isOpen())) {
-
-                long milliseconds = (long) (mainController.player.line.getMicrosecondPosition() / 1000);
-                mainController.seconds = milliseconds / 1000.0;
-            } else if ((mainController.recorder.line != null) && (mainController.recorder.line.isActive())) {
-
-                long milliseconds = (long) (mainController.recorder.line.getMicrosecondPosition() / 1000);
-                mainController.seconds = milliseconds / 1000.0;
-            }
+    private void drawMeters(Graphics2D g2, LevelMeter meter, int w, int h) {
+        if (!readLevels(meter) || h <= METER_WIDTH * 2) {
+            return;
+        }
+        int channels = levels.peak.length;
+        int top = METER_WIDTH + 2;
+        int height = h - top - 2;
+        for (int c = 0; c < channels; c++) {
+            int x = w - (channels - c) * (METER_WIDTH + 2) - 2;
+            g2.setColor(Color.darkGray);
+            g2.fillRect(x, top, METER_WIDTH, height);
+            int peak = meterHeight(levels.peak[c], height);
+            int rms = meterHeight(levels.rms[c], height);
+            int hold = meterHeight(levels.peakHold[c], height);
+            g2.setColor(levels.peak[c] >= LevelMeter.CLIP_LEVEL ? Color.red : levels.peak[c] >= 0.5f ? Color.yellow : Color.green.darker());
+            g2.fillRect(x, top + height - peak, METER_WIDTH, peak - rms);
+            g2.setColor(Color.green);
+            g2.fillRect(x, top + height - rms, METER_WIDTH, rms);
+            g2.setColor(Color.white);
+            g2.drawLine(x, top + height - hold, x + METER_WIDTH - 1, top + height - hold);
+            g2.setColor(levels.clipped[c] > 0 ? Color.red : Color.darkGray);
+            g2.fillRect(x, 0, METER_WIDTH, METER_WIDTH);
+        }
+    }
 
-            try {
-                Thread.sleep(100);
-            } catch (Exception e) {
-                break;
-            }
+    /**
+     * Maps a level to pixels on a dB scale from {@link #METER_FLOOR_DB} to full scale.
+     */
+    private static int meterHeight(float level, int height) {
+        double db = LevelMeter.toDb(level);
+        double fraction = Math.max(0, Math.min(1, (db - METER_FLOOR_DB) / -METER_FLOOR_DB));
+        return (int) (fraction * height);
+    }
 
-            repaint();
+    /**
+     * Follows the given clock, repainting on its ticks.
+     */
+    public void start(PositionClock clock) {
+        stop();
+        this.clock = clock;
+        mainController.seconds = 0;
+        clock.addTickListener(tick);
+    }
 
-            while ((mainController.recorder.line != null && !mainController.recorder.line.isActive()) || (mainController.player.line != null && !mainController.player.line.isOpen())) {
-                try {
-                    Thread.sleep(10);
-                } catch (Exception e) {
-                    break;
-                }
-            }
+    public void stop() {
+        PositionClock c = clock;
+        if (c != null) {
+            c.removeTickListener(tick);
         }
+        clock = null;
         mainController.seconds = 0;
         repaint();
     }
+
+    private void positionChanged() {
+        PositionClock c = clock;
+        if (c != null) {
+            mainController.seconds = c.getSeconds();
+        }
+        repaint();
+        if (mainController.spectrogramGraph != null) {
+            mainController.spectrogramGraph.repaint();
+        }
+    }
 }
@@ -0,0 +1,388 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.swing.*;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Saves captured or loaded audio off the event thread.
+ * <p>
+ * The target name is claimed atomically with CREATE_NEW (name.wav, name0.wav, name1.wav, ...), so two saves
+ * never pick the same file. WAV output of a captured {@link AudioStore} whose samples are already in WAV layout
+ * (8 bit unsigned, wider signed little-endian) is a gather write of the header and the store's segments
+ * themselves; WAV output of a WAV file is a FileChannel transfer of its data chunk. Neither copies through the
+ * heap. Everything else (other file types, compressed output, converted streams) is streamed through the audio
+ * system or the codec. Work is done in chunks so progress is reported and cancellation takes effect between
+ * chunks; a cancelled or failed save deletes its partial file. Regions of the take, see
+ * {@link AudioStore#getRegions()}, are kept as WAV cue points.
+ * <p>
+ * Run it as a SwingWorker with {@link #execute()}, or synchronously with {@link #save()}.
+ */
+public class SaveTask extends SwingWorker<File, Void> {
+
+    static final int CHUNK_SIZE = 8 << 20;
+
+    private final String name;
+    private final AudioFileFormat.Type fileType;
+    private final AudioStore store;
+    private final AudioFormat format;
+    private final File sourceFile;
+    private final AudioInputStream audioInputStream;
+    private boolean background;
+    private long total;
+    private long done;
+    private long[] regions;
+
+    private SaveTask(String name, AudioFileFormat.Type fileType, AudioStore store, AudioFormat format, File sourceFile,
+                     AudioInputStream audioInputStream) {
+        this.name = name;
+        this.fileType = fileType;
+        this.store = store;
+        this.format = format;
+        this.sourceFile = sourceFile;
+        this.audioInputStream = audioInputStream;
+    }
+
+    /**
+     * Saves a take captured into memory, holding a reference to the store until the save is over.
+     */
+    public static SaveTask forStore(String name, AudioFileFormat.Type fileType, AudioStore store) {
+        return new SaveTask(name, fileType, store.retain(), store.getFormat(), null, null);
+    }
+
+    /**
+     * Saves (a copy of) an audio file.
+     */
+    public static SaveTask forFile(String name, AudioFileFormat.Type fileType, File sourceFile) {
+        return new SaveTask(name, fileType, null, null, sourceFile, null);
+    }
+
+    /**
+     * Saves the remaining frames of a stream.
+     */
+    public static SaveTask forStream(String name, AudioFileFormat.Type fileType, AudioInputStream audioInputStream) {
+        return new SaveTask(name, fileType, null, null, null, audioInputStream);
+    }
+
+    protected File doInBackground() throws Exception {
+        background = true;
+        return save();
+    }
+
+    /**
+     * Saves on the calling thread.
+     *
+     * @return the file written
+     */
+    public File save() throws Exception {
+        try {
+            return saveNew();
+        } finally {
+            if (store != null) {
+                store.release();
+            }
+        }
+    }
+
+    private File saveNew() throws Exception {
+        String extension = "." + fileType.getExtension();
+        File target = new File(name + extension);
+        FileChannel out = null;
+        for (int i = 0; out == null; i++) {
+            try {
+                out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException ex) {
+                target = new File(String.format(name + "%d", i) + extension);
+            }
+        }
+        boolean saved = false;
+        try {
+            if (store != null && isWave(format)) {
+                writeStore(out, store);
+            } else if (sourceFile != null && fileType == AudioFileFormat.Type.WAVE && transferWave(out, sourceFile)) {
+                // copied straight from the source data chunk
+            } else {
+                writeStream(out);
+            }
+            if (store != null) {
+                regions = store.getRegions();
+            }
+            if (fileType == AudioFileFormat.Type.WAVE && regions != null && regions.length > 0) {
+                WaveFileWriter.appendChunks(out, WaveFileWriter.regionChunks(regions));
+            }
+            saved = true;
+            return target;
+        } finally {
+            out.close();
+            if (!saved) {
+                target.delete();
+            }
+        }
+    }
+
+    /**
+     * @return whether the take goes into a WAV data chunk byte for byte, anything else is converted by the audio system
+     */
+    private boolean isWave(AudioFormat format) {
+        return fileType == AudioFileFormat.Type.WAVE && WaveFileWriter.isWaveLayout(format);
+    }
+
+    private static ByteBuffer header(AudioFormat format, long dataBytes) {
+        ByteBuffer header = ByteBuffer.allocate(WaveFileWriter.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        WaveFileWriter.putHeader(header, format, dataBytes);
+        return header;
+    }
+
+    private void writeStore(FileChannel out, AudioStore store) throws IOException {
+        long length = store.getFrameLength() * store.getFormat().getFrameSize();
+        ByteBuffer header = header(store.getFormat(), length);
+        total = length;
+        byte[][] segments = store.segments();
+        int segmentBytes = store.getSegmentBytes();
+        int perChunk = Math.max(1, CHUNK_SIZE / segmentBytes);
+        long offset = 0;
+        int index = 0;
+        do {
+            checkCancelled();
+            int n = (int) Math.min(perChunk, (length - offset + segmentBytes - 1) / segmentBytes);
+            ByteBuffer[] buffers = new ByteBuffer[n + 1];
+            buffers[0] = header;
+            for (int i = 0; i < n; i++) {
+                long start = (long) (index + i) * segmentBytes;
+                buffers[i + 1] = ByteBuffer.wrap(segments[index + i], 0, (int) Math.min(segmentBytes, length - start));
+            }
+            while (buffers[n].hasRemaining()) {
+                out.write(buffers);
+            }
+            index += n;
+            offset = Math.min(length, (long) index * segmentBytes);
+            progress(offset);
+        } while (offset < length);
+    }
+
+    /**
+     * Copies the data chunk of a plain PCM wave file channel to channel.
+     *
+     * @return false if the source is not such a file
+     */
+    private boolean transferWave(FileChannel out, File source) throws IOException {
+        long offset;
+        long length;
+        AudioFormat sourceFormat;
+        try (MappedWaveReader reader = new MappedWaveReader(source)) {
+            sourceFormat = reader.getFormat();
+            offset = reader.getDataOffset();
+            length = reader.getFrameLength() * sourceFormat.getFrameSize();
+            regions = reader.getRegions();
+        } catch (IOException ex) {
+            return false;
+        }
+        ByteBuffer header = header(sourceFormat, length);
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+        total = length;
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < length) {
+                checkCancelled();
+                long n = in.transferTo(offset + copied, Math.min(CHUNK_SIZE, length - copied), out);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of " + source);
+                }
+                copied += n;
+                progress(copied);
+            }
+        }
+        return true;
+    }
+
+    private void writeStream(FileChannel out) throws Exception {
+        AudioInputStream stream = audioInputStream;
+        if (stream == null) {
+            stream = sourceFile != null ? LosslessCodec.getAudioInputStream(sourceFile) : store.getAudioInputStream();
+        } else if (stream.markSupported()) {
+            // reset to the beginnning of the captured data
+            stream.reset();
+        }
+        long frames = stream.getFrameLength();
+        total = frames == AudioSystem.NOT_SPECIFIED ? -1 : frames * stream.getFormat().getFrameSize();
+        AudioInputStream counting = new AudioInputStream(new Progress(stream), stream.getFormat(), frames);
+        try {
+            if (fileType == LosslessCodec.JLA) {
+                LosslessCodec.encode(counting, Channels.newOutputStream(out));
+            } else {
+                AudioSystem.write(toWaveLayout(counting), fileType, Channels.newOutputStream(out));
+            }
+        } finally {
+            if (stream != audioInputStream) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Converts integer PCM that WAV does not store as it is, such as signed 8 or unsigned 16 bit. The audio system
+     * writes some of those unchanged under a header that says otherwise.
+     */
+    private AudioInputStream toWaveLayout(AudioInputStream stream) {
+        AudioFormat format = stream.getFormat();
+        boolean integer = AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+                || AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding());
+        if (fileType != AudioFileFormat.Type.WAVE || !integer || format.getSampleSizeInBits() % 8 != 0
+                || WaveFileWriter.isWaveLayout(format)) {
+            return stream;
+        }
+        int bits = format.getSampleSizeInBits();
+        AudioFormat target = new AudioFormat(bits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED,
+                format.getSampleRate(), bits, format.getChannels(), format.getFrameSize(), format.getFrameRate(), false);
+        return new AudioInputStream(new WaveLayoutStream(stream), target, stream.getFrameLength());
+    }
+
+    /**
+     * Converts the frames of a stream to WAV layout as they are read. An AudioInputStream only returns whole frames,
+     * so reads of less than a frame go through a one frame buffer.
+     */
+    private static final class WaveLayoutStream extends InputStream {
+
+        private final AudioInputStream in;
+        private final AudioFormat format;
+        private final byte[] frame;
+        private int framePosition;
+        private int frameEnd;
+
+        WaveLayoutStream(AudioInputStream in) {
+            this.in = in;
+            this.format = in.getFormat();
+            this.frame = new byte[format.getFrameSize()];
+        }
+
+        public int read() throws IOException {
+            if (framePosition == frameEnd && !fillFrame()) {
+                return -1;
+            }
+            return frame[framePosition++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (framePosition == frameEnd && len < frame.length && !fillFrame()) {
+                return -1;
+            }
+            if (framePosition < frameEnd) {
+                int n = Math.min(len, frameEnd - framePosition);
+                System.arraycopy(frame, framePosition, b, off, n);
+                framePosition += n;
+                return n;
+            }
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                WaveFileWriter.toWaveLayout(format, b, off, n);
+            }
+            return n;
+        }
+
+        private boolean fillFrame() throws IOException {
+            int n = in.read(frame, 0, frame.length);
+            if (n <= 0) {
+                return false;
+            }
+            WaveFileWriter.toWaveLayout(format, frame, 0, n);
+            framePosition = 0;
+            frameEnd = n;
+            return true;
+        }
+
+        public int available() throws IOException {
+            return frameEnd - framePosition + in.available();
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (isCancelled() || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Save cancelled");
+        }
+    }
+
+    private void progress(long bytes) {
+        done = bytes;
+        if (background && total > 0) {
+            setProgress((int) Math.min(100, bytes * 100 / total));
+        }
+    }
+
+    /**
+     * @return bytes of audio data written so far
+     */
+    public long getBytesWritten() {
+        return done;
+    }
+
+    /**
+     * Counts bytes as the writer pulls them and stops it when the task is cancelled.
+     */
+    private class Progress extends FilterInputStream {
+
+        Progress(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            checkCancelled();
+            int b = super.read();
+            if (b != -1) {
+                progress(done + 1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                progress(done + n);
+            }
+            return n;
+        }
+
+        public void close() {
+            // the stream is owned by whoever passed it in
+        }
+    }
+
+    /**
+     * @return the saved file, or null if the save was cancelled
+     * @throws Exception the cause of a failed save
+     */
+    public File getResult() throws Exception {
+        try {
+            return get();
+        } catch (CancellationException ex) {
+            return null;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ex;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package jaudio;
+
+/**
+ * A bounded free list of equally sized byte segments, so takes kept in memory reuse the segments of earlier takes
+ * instead of allocating new ones.
+ * <p>
+ * Segments come back in whatever state they were released in; their users track how much of each is valid.
+ * Up to maxPooledBytes of free segments are kept, anything released beyond that is left to the garbage collector.
+ */
+public class SegmentPool {
+
+    public static final int SEGMENT_BYTES = 1 << 18;
+    static final long MAX_POOLED_BYTES = 64L << 20;
+
+    private static final SegmentPool shared = new SegmentPool(SEGMENT_BYTES, MAX_POOLED_BYTES);
+
+    private final int segmentBytes;
+    private final byte[][] free;
+    private int pooled;
+    private long allocated;
+    private long reused;
+
+    public SegmentPool(int segmentBytes, long maxPooledBytes) {
+        this.segmentBytes = segmentBytes;
+        this.free = new byte[(int) Math.max(1, maxPooledBytes / segmentBytes)][];
+    }
+
+    /**
+     * @return the pool of {@link #SEGMENT_BYTES} segments used by the in-memory capture stores
+     */
+    public static SegmentPool getShared() {
+        return shared;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * @return a free segment, or a new one if none is pooled
+     */
+    public byte[] acquire() {
+        synchronized (this) {
+            if (pooled > 0) {
+                byte[] segment = free[--pooled];
+                free[pooled] = null;
+                reused++;
+                return segment;
+            }
+            allocated++;
+        }
+        return new byte[segmentBytes];
+    }
+
+    /**
+     * Hands a segment back; it must not be used afterwards.
+     */
+    public synchronized void release(byte[] segment) {
+        if (segment.length == segmentBytes && pooled < free.length) {
+            free[pooled++] = segment;
+        }
+    }
+
+    public synchronized int getPooledCount() {
+        return pooled;
+    }
+
+    /**
+     * @return segments created because the pool was empty
+     */
+    public synchronized long getAllocatedCount() {
+        return allocated;
+    }
+
+    /**
+     * @return segments served from the pool
+     */
+    public synchronized long getReusedCount() {
+        return reused;
+    }
+}
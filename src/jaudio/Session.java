@@ -0,0 +1,151 @@
+package jaudio;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One capture or playback stream with its own state, run by a {@link SessionManager}.
+ * <p>
+ * A session never owns a thread. The manager calls {@link #step()} every tick on a shared executor, and each
+ * step moves only what the source and sink can take without blocking, then returns. A stop request is acted
+ * on by the next tick, so resources are always released on the thread that used them.
+ */
+public abstract class Session {
+
+    public enum State {
+        NEW, RUNNING, STOPPED, FAILED
+    }
+
+    private final String id;
+    final StreamMetrics metrics = new StreamMetrics();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile State state = State.NEW;
+    private volatile boolean stopRequested;
+    private volatile Exception error;
+    private volatile long frames;
+    private long startNanos;
+    private volatile long stopNanos;
+    // set by the manager's thread, cancelled by whichever thread finishes the session
+    volatile ScheduledFuture<?> future;
+
+    protected Session(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    /**
+     * @return the cause of a FAILED session
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public StreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return frames moved so far
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    public double getElapsedSec() {
+        if (startNanos == 0) {
+            return 0;
+        }
+        long end = stopNanos != 0 ? stopNanos : System.nanoTime();
+        return (end - startNanos) / 1e9;
+    }
+
+    /**
+     * Asks the session to stop; it does so on its next tick.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Waits until the session has stopped or failed.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    protected void countFrames(int n) {
+        frames += n;
+    }
+
+    /**
+     * Opens resources, on the executor before the first step.
+     */
+    protected abstract void open() throws Exception;
+
+    /**
+     * Moves whatever can be moved without blocking.
+     *
+     * @return false at the end of the stream
+     */
+    protected abstract boolean step() throws Exception;
+
+    /**
+     * Releases resources; called once, whether the session ended, was stopped or failed.
+     */
+    protected abstract void close() throws Exception;
+
+    final void tick() {
+        State current = state;
+        if (current == State.STOPPED || current == State.FAILED) {
+            return;
+        }
+        try {
+            if (current == State.NEW) {
+                startNanos = System.nanoTime();
+                open();
+                state = State.RUNNING;
+            }
+            if (stopRequested || !step()) {
+                finish(State.STOPPED);
+            }
+        } catch (Exception ex) {
+            error = ex;
+            finish(State.FAILED);
+        }
+    }
+
+    private void finish(State end) {
+        try {
+            close();
+        } catch (Exception ex) {
+            if (error == null) {
+                error = ex;
+                end = State.FAILED;
+            }
+        }
+        stopNanos = System.nanoTime();
+        state = end;
+        if (future != null) {
+            future.cancel(false);
+        }
+        finished.countDown();
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + "[" + id + " " + state + " " + frames + " frames" + (error != null ? " " + error : "") + "]";
+    }
+}
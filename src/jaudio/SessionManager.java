@@ -0,0 +1,256 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts, stops and tracks many independent {@link Session}s in one JVM.
+ * <p>
+ * All sessions share one scheduled executor with a thread per core. Every session is ticked every
+ * {@link #getTickMillis()} ms and each tick only moves what is ready, so the number of sessions is bounded by
+ * CPU and memory, not threads. The scaling target is 500 concurrent 16 kHz mono captures on a single core
+ * without dropped frames; {@link #main} runs that load against {@link SyntheticSource}s, optionally with as
+ * many playback sessions into {@link NullSink}s, at a multiple of real time:
+ *
+ * <pre>
+ * java jaudio.SessionManager [-sessions 500] [-playback 0] [-seconds 5] [-rate 16000] [-speed 1] [-threads N] [-tick 10]
+ * </pre>
+ */
+public class SessionManager {
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long tickMillis;
+    private final LatencyHistogram tickTime = new LatencyHistogram();
+
+    public SessionManager(int threads, long tickMillis) {
+        this.tickMillis = tickMillis;
+        AtomicInteger count = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, r -> {
+            Thread thread = new Thread(r, "Session-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public SessionManager() {
+        this(Runtime.getRuntime().availableProcessors(), 10);
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * @return how long single session ticks took, across all sessions
+     */
+    public LatencyHistogram getTickTime() {
+        return tickTime;
+    }
+
+    /**
+     * Schedules a new session.
+     *
+     * @throws IllegalArgumentException if a session with the same id is registered
+     */
+    public <S extends Session> S start(S session) {
+        if (sessions.putIfAbsent(session.getId(), session) != null) {
+            throw new IllegalArgumentException("Session already exists: " + session.getId());
+        }
+        session.future = executor.scheduleWithFixedDelay(() -> {
+            long start = System.nanoTime();
+            session.tick();
+            tickTime.record(System.nanoTime() - start);
+        }, 0, tickMillis, TimeUnit.MILLISECONDS);
+        if (session.getState() == Session.State.STOPPED || session.getState() == Session.State.FAILED) {
+            // finished before the future was known
+            session.future.cancel(false);
+        }
+        return session;
+    }
+
+    /**
+     * @param target WAV file to write, or null to capture into memory
+     */
+    public CaptureSession startCapture(String id, AudioSource source, File target) {
+        return start(new CaptureSession(id, source, target));
+    }
+
+    /**
+     * @param line an open sink in the source format, or null to open the default line
+     */
+    public PlaybackSession startPlayback(String id, AudioInputStream source, AudioSink line) {
+        return start(new PlaybackSession(id, source, line));
+    }
+
+    /**
+     * Asks a session to stop; it stays registered, with its final state, until {@link #remove}d.
+     *
+     * @return false if there is no such session
+     */
+    public boolean stop(String id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return false;
+        }
+        session.stop();
+        return true;
+    }
+
+    public Session get(String id) {
+        return sessions.get(id);
+    }
+
+    public Collection<Session> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public int getRunningCount() {
+        int running = 0;
+        for (Session session : sessions.values()) {
+            if (session.getState() == Session.State.NEW || session.isRunning()) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    /**
+     * Forgets a finished session, releasing the take of a memory capture.
+     *
+     * @return false if the session does not exist or is still running
+     */
+    public boolean remove(String id) {
+        Session session = sessions.get(id);
+        if (session == null || session.getState() == Session.State.NEW || session.isRunning()) {
+            return false;
+        }
+        if (!sessions.remove(id, session)) {
+            return false;
+        }
+        if (session instanceof CaptureSession) {
+            ((CaptureSession) session).release();
+        }
+        return true;
+    }
+
+    public void stopAll() {
+        for (Session session : sessions.values()) {
+            session.stop();
+        }
+    }
+
+    /**
+     * Waits for every session to finish.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitAll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Session session : sessions.values()) {
+            if (!session.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops all sessions, waits up to five seconds for them to close and shuts the executor down.
+     */
+    public void shutdown() throws InterruptedException {
+        stopAll();
+        awaitAll(5, TimeUnit.SECONDS);
+        executor.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = 500;
+        int playback = 0;
+        int seconds = 5;
+        float rate = 16000;
+        double speed = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long tick = 10;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-sessions")) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-playback")) {
+                playback = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-speed")) {
+                speed = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-seconds")) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate")) {
+                rate = Float.parseFloat(args[++i]);
+            } else if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-tick")) {
+                tick = Long.parseLong(args[++i]);
+            }
+        }
+        AudioFormat format = new AudioFormat(rate, 16, 1, true, false);
+        SessionManager manager = new SessionManager(threads, tick);
+        // half a second of wall clock time, however fast the endpoints run
+        int bufferSize = (int) (format.getFrameRate() / 2 * Math.max(speed, 1)) * format.getFrameSize();
+        List<SyntheticSource> sources = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            SyntheticSource source = new SyntheticSource(format, bufferSize, 200 + i, 0.25f);
+            source.setSpeed(speed);
+            sources.add(source);
+            manager.startCapture("capture-" + i, source, null);
+        }
+        // enough audio to keep every playback session busy for the whole run
+        long playbackFrames = (long) (seconds * rate * Math.max(speed, 1)) + bufferSize / format.getFrameSize();
+        byte[] audio = new byte[(int) Math.min(Integer.MAX_VALUE / 2, playbackFrames * format.getFrameSize())];
+        for (int i = 0; i < playback; i++) {
+            NullSink sink = new NullSink(format, bufferSize);
+            sink.setSpeed(speed);
+            AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(audio), format, audio.length / format.getFrameSize());
+            manager.startPlayback("playback-" + i, stream, sink);
+        }
+        Thread.sleep(seconds * 1000L);
+        manager.shutdown();
+
+        long captured = 0;
+        long played = 0;
+        long underruns = 0;
+        int failed = 0;
+        for (Session session : manager.getSessions()) {
+            if (session instanceof CaptureSession) {
+                captured += session.getFrames();
+            } else {
+                played += session.getFrames();
+                underruns += session.getMetrics().getUnderruns();
+            }
+            failed += session.getState() == Session.State.FAILED ? 1 : 0;
+        }
+        long dropped = 0;
+        for (SyntheticSource source : sources) {
+            dropped += source.getDroppedFrames();
+        }
+        LatencyHistogram ticks = manager.getTickTime();
+        System.out.println(String.format(Locale.ROOT, "%d sessions x %d s at %.0f Hz x %.0f on %d threads: %d frames captured, %d dropped, %d failed",
+                count, seconds, rate, speed, threads, captured, dropped, failed));
+        if (playback > 0 && speed > 0) {
+            System.out.println(String.format(Locale.ROOT, "%d playback sessions: %d frames played, %d underruns", playback, played, underruns));
+        } else if (playback > 0) {
+            // an unpaced sink plays instantly, so it is always empty and underruns mean nothing
+            System.out.println(String.format(Locale.ROOT, "%d playback sessions: %d frames played", playback, played));
+        }
+        System.out.println(String.format(Locale.ROOT, "tick time: mean %d us, p99 %d us, max %d us over %d ticks", ticks.getMeanNanos() / 1000,
+                ticks.getPercentileNanos(0.99) / 1000, ticks.getMaxNanos() / 1000, ticks.getCount()));
+    }
+}
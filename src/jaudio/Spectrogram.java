@@ -0,0 +1,259 @@
+package jaudio;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Short-time Fourier transform of a signal, stored as quantized dB columns and rendered as image tiles.
+ * <p>
+ * Columns are computed with a shared {@link Fft} plan and Hann window table on primitive work arrays, so
+ * no column allocates. A spectrogram is filled either incrementally through {@link #append} (capture) or
+ * tile by tile in parallel from a mapped file ({@link #compute}). Every {@link #TILE_COLUMNS} columns form a
+ * tile whose image is cached once complete, so scrolling or repainting never runs the FFT again.
+ */
+public class Spectrogram {
+
+    static final int TILE_COLUMNS = 256;
+    static final float RANGE_DB = 90f;
+    private static final int[] PALETTE = palette();
+
+    private final int fftSize;
+    private final int hop;
+    private final int bins;
+    private final Fft fft;
+    private final float[] window;
+    private final float referenceDb;
+    private final float frameRate;
+
+    // column levels, one byte per bin, TILE_COLUMNS columns per tile
+    private byte[][] tiles = new byte[16][];
+    private int[] tileFill = new int[16];
+    private BufferedImage[] tileImages = new BufferedImage[16];
+    private int[] tileImageFill = new int[16];
+    private int columns;
+    private volatile boolean cancelled;
+
+    // incremental state, capture thread only
+    private final float[] history;
+    private final float[] re;
+    private final float[] im;
+    private long samplesIn;
+    private int sinceColumn;
+
+    public Spectrogram(int fftSize, int hop, float frameRate) {
+        this.fftSize = fftSize;
+        this.hop = hop;
+        this.bins = fftSize / 2 + 1;
+        this.frameRate = frameRate;
+        fft = new Fft(fftSize);
+        window = Fft.hann(fftSize);
+        // a full scale sine through a Hann window peaks at fftSize / 4
+        referenceDb = (float) (20 * Math.log10(fftSize / 4.0));
+        history = new float[fftSize];
+        re = new float[fftSize];
+        im = new float[fftSize];
+    }
+
+    public Spectrogram(float frameRate) {
+        this(512, 256, frameRate);
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    public synchronized int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Feeds interleaved samples normalized to [-1, 1], mixed down to mono. Computes a column every hop frames.
+     */
+    public void append(float[] samples, int offset, int frames, int channels) {
+        float scale = 1f / channels;
+        int idx = offset;
+        for (int f = 0; f < frames; f++) {
+            float s = 0;
+            for (int c = 0; c < channels; c++) {
+                s += samples[idx++];
+            }
+            history[(int) (samplesIn++ % fftSize)] = s * scale;
+            if (++sinceColumn >= hop && samplesIn >= fftSize) {
+                sinceColumn = 0;
+                int start = (int) (samplesIn % fftSize);
+                for (int i = 0; i < fftSize; i++) {
+                    re[i] = history[(start + i) % fftSize] * window[i];
+                }
+                int column = getColumns();
+                byte[] levels = reserve(column);
+                transform(re, im, levels, (column % TILE_COLUMNS) * bins);
+                publish(column);
+            }
+        }
+    }
+
+    /**
+     * Windowed samples in re to quantized levels, im is scratch.
+     */
+    private void transform(float[] re, float[] im, byte[] dst, int offset) {
+        Arrays.fill(im, 0f);
+        fft.forward(re, im);
+        for (int k = 0; k < bins; k++) {
+            float power = re[k] * re[k] + im[k] * im[k];
+            float db = (float) (10 * Math.log10(power + 1e-12f)) - referenceDb;
+            int level = (int) ((db + RANGE_DB) * (255f / RANGE_DB));
+            dst[offset + k] = (byte) Math.max(0, Math.min(255, level));
+        }
+    }
+
+    private synchronized byte[] reserve(int column) {
+        int tile = column / TILE_COLUMNS;
+        if (tile >= tiles.length) {
+            int capacity = Math.max(tile + 1, tiles.length * 2);
+            tiles = Arrays.copyOf(tiles, capacity);
+            tileFill = Arrays.copyOf(tileFill, capacity);
+            tileImages = Arrays.copyOf(tileImages, capacity);
+            tileImageFill = Arrays.copyOf(tileImageFill, capacity);
+        }
+        if (tiles[tile] == null) {
+            tiles[tile] = new byte[TILE_COLUMNS * bins];
+        }
+        return tiles[tile];
+    }
+
+    private synchronized void publish(int column) {
+        tileFill[column / TILE_COLUMNS]++;
+        columns = Math.max(columns, column + 1);
+    }
+
+    /**
+     * Computes the spectrogram of a whole file, one tile per task on the common fork-join pool. Tiles become visible
+     * as soon as they are done, so a view can paint while the rest is still computing.
+     */
+    public static Spectrogram compute(MappedWaveReader reader) {
+        Spectrogram spectrogram = new Spectrogram(reader.getFormat().getFrameRate());
+        spectrogram.computeAll(reader);
+        return spectrogram;
+    }
+
+    /**
+     * Fills this (empty) spectrogram from a file in parallel, see {@link #compute}.
+     */
+    public void computeAll(MappedWaveReader reader) {
+        long frames = reader.getFrameLength();
+        int total = frames < fftSize ? 0 : (int) ((frames - fftSize) / hop + 1);
+        int tileCount = (total + TILE_COLUMNS - 1) / TILE_COLUMNS;
+        if (tileCount > 0) {
+            reserve(total - 1);
+        }
+        IntStream.range(0, tileCount).parallel().forEach(tile -> {
+            if (cancelled) {
+                return;
+            }
+            try {
+                computeTile(reader, tile, Math.min(TILE_COLUMNS, total - tile * TILE_COLUMNS));
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+    }
+
+    /**
+     * Makes a running {@link #computeAll} skip the tiles it has not started yet.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void computeTile(MappedWaveReader reader, int tile, int count) throws IOException {
+        int channels = reader.getFormat().getChannels();
+        long firstFrame = (long) tile * TILE_COLUMNS * hop;
+        int spanFrames = (count - 1) * hop + fftSize;
+        float[] samples = new float[spanFrames * channels];
+        int read = reader.readFrames(firstFrame, spanFrames, samples);
+        float[] mono = new float[spanFrames];
+        float scale = 1f / channels;
+        for (int f = 0, idx = 0; f < read; f++) {
+            float s = 0;
+            for (int c = 0; c < channels; c++) {
+                s += samples[idx++];
+            }
+            mono[f] = s * scale;
+        }
+        float[] tr = new float[fftSize];
+        float[] ti = new float[fftSize];
+        byte[] levels = reserve(tile * TILE_COLUMNS);
+        for (int c = 0; c < count; c++) {
+            int start = c * hop;
+            for (int i = 0; i < fftSize; i++) {
+                tr[i] = mono[start + i] * window[i];
+            }
+            transform(tr, ti, levels, c * bins);
+        }
+        synchronized (this) {
+            tileFill[tile] = count;
+            columns = Math.max(columns, tile * TILE_COLUMNS + count);
+        }
+    }
+
+    /**
+     * @return the number of columns of the tile computed so far
+     */
+    public synchronized int getTileFill(int tile) {
+        return tile < tileFill.length ? tileFill[tile] : 0;
+    }
+
+    /**
+     * Returns the image of a tile, TILE_COLUMNS wide and one row per bin with the highest frequency on top.
+     * Complete tiles are rendered once and then served from the cache.
+     */
+    public synchronized BufferedImage getTileImage(int tile) {
+        int fill = getTileFill(tile);
+        if (fill == 0) {
+            return null;
+        }
+        BufferedImage image = tileImages[tile];
+        if (image != null && tileImageFill[tile] == fill) {
+            return image;
+        }
+        if (image == null) {
+            image = new BufferedImage(TILE_COLUMNS, bins, BufferedImage.TYPE_INT_RGB);
+        }
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        byte[] levels = tiles[tile];
+        for (int c = 0; c < fill; c++) {
+            for (int k = 0; k < bins; k++) {
+                pixels[(bins - 1 - k) * TILE_COLUMNS + c] = PALETTE[levels[c * bins + k] & 0xFF];
+            }
+        }
+        tileImages[tile] = image;
+        tileImageFill[tile] = fill;
+        return image;
+    }
+
+    /**
+     * Dark blue through red to yellow.
+     */
+    private static int[] palette() {
+        int[] palette = new int[256];
+        for (int i = 0; i < 256; i++) {
+            float t = i / 255f;
+            int r = (int) (255 * Math.min(1f, Math.max(0f, 2.0f * t - 0.2f)));
+            int g = (int) (255 * Math.min(1f, Math.max(0f, 2.0f * t - 1.0f)));
+            int b = (int) (255 * Math.min(1f, Math.max(0f, t < 0.5f ? 0.2f + t : 1.2f - t * 1.4f)));
+            palette[i] = r << 16 | g << 8 | b;
+        }
+        return palette;
+    }
+}
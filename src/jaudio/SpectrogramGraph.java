@@ -0,0 +1,83 @@
+package jaudio;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+
+/**
+ * Render a Spectrogram below the waveform.
+ * <p>
+ * While recording the newest columns scroll in from the right at one pixel per column, otherwise the
+ * whole clip is scaled to the panel width. Either way only cached tile images are blitted. A file opened from
+ * its cached peaks has no spectrogram until the panel is clicked.
+ */
+class SpectrogramGraph extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    private MainController mainController;
+    final Color pink = new Color(255, 175, 175);
+
+    public SpectrogramGraph(MainController mainController) {
+        this.mainController = mainController;
+        setBackground(new Color(20, 20, 20));
+        setPreferredSize(new Dimension(600, 120));
+        addMouseListener(new MouseAdapter() {
+            public void mousePressed(MouseEvent e) {
+                if (mainController.samplingGraph != null) {
+                    mainController.samplingGraph.requestSpectrogram();
+                }
+            }
+        });
+    }
+
+    public void paint(Graphics g) {
+        Dimension d = getSize();
+        int w = d.width;
+        int h = d.height;
+        Graphics2D g2 = (Graphics2D) g;
+        g2.setBackground(getBackground());
+        g2.clearRect(0, 0, w, h);
+
+        Spectrogram spectrogram = mainController.spectrogram;
+        if (spectrogram == null || w <= 0) {
+            if (mainController.file != null && mainController.recorder.thread == null) {
+                g2.setColor(pink);
+                g2.drawString("Click to compute the spectrogram", 5, h / 2);
+            }
+            return;
+        }
+        int columns = spectrogram.getColumns();
+        int bins = spectrogram.getBins();
+        int tileColumns = Spectrogram.TILE_COLUMNS;
+        if (mainController.recorder.thread != null) {
+            // .. scroll: one pixel per column, newest on the right ..
+            int first = Math.max(0, columns - w);
+            int x0 = w - (columns - first);
+            for (int tile = first / tileColumns; tile * tileColumns < columns; tile++) {
+                BufferedImage image = spectrogram.getTileImage(tile);
+                if (image != null) {
+                    int dx = x0 + tile * tileColumns - first;
+                    g2.drawImage(image, dx, 0, dx + tileColumns, h, 0, 0, tileColumns, bins, null);
+                }
+            }
+        } else {
+            // .. whole clip scaled to the panel ..
+            for (int tile = 0; tile * tileColumns < columns; tile++) {
+                BufferedImage image = spectrogram.getTileImage(tile);
+                if (image != null) {
+                    int dx1 = (int) ((long) tile * tileColumns * w / columns);
+                    int dx2 = (int) ((long) (tile + 1) * tileColumns * w / columns);
+                    g2.drawImage(image, dx1, 0, dx2, h, 0, 0, tileColumns, bins, null);
+                }
+            }
+            if (mainController.seconds != 0 && mainController.duration > 0) {
+                int loc = (int) (mainController.seconds / mainController.duration * w);
+                g2.setColor(pink);
+                g2.drawLine(loc, 0, loc, h);
+            }
+        }
+    }
+}
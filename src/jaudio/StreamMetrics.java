@@ -0,0 +1,227 @@
+package jaudio;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health counters of one capture or playback stream, published as an MBean under jaudio:type=...
+ * <p>
+ * The streaming thread records once per chunk: the line buffer fill seen before the transfer, how long the
+ * read or write took, how long decoding or conversion took, and glitches. Everything is an atomic counter or a
+ * {@link LatencyHistogram}, so recording takes no locks and allocates nothing, and JMX clients can read or reset
+ * at any time.
+ * <ul>
+ * <li>overrun: a capture line buffer was found full, so the hardware had to drop frames</li>
+ * <li>underrun: a playback line buffer was found empty, so the hardware played silence</li>
+ * <li>starvation: the playback thread found nothing decoded ahead and had to wait</li>
+ * </ul>
+ */
+public class StreamMetrics implements StreamMetricsMBean {
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong starvations = new AtomicLong();
+    private final AtomicInteger fillHighWater = new AtomicInteger();
+    private final AtomicInteger fillLowWater = new AtomicInteger(Integer.MAX_VALUE);
+    private final LatencyHistogram chunkLatency = new LatencyHistogram();
+    private final LatencyHistogram conversion = new LatencyHistogram();
+    private volatile int bufferSize;
+    private volatile LatencyTuner tuner;
+    private ObjectName name;
+
+    /**
+     * Registers with the platform MBean server as jaudio:type=type, adding an id if that name is taken.
+     */
+    public synchronized void register(String type) {
+        if (name != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; name == null; i++) {
+            try {
+                ObjectName candidate = new ObjectName("jaudio:type=" + type + (i == 0 ? "" : ",id=" + i));
+                server.registerMBean(this, candidate);
+                name = candidate;
+            } catch (InstanceAlreadyExistsException ex) {
+                // try the next id
+            } catch (JMException ex) {
+                System.err.println("Unable to register metrics " + type + ": " + ex);
+                return;
+            }
+        }
+    }
+
+    public synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ex) {
+            System.err.println("Unable to unregister metrics " + name + ": " + ex);
+        }
+        name = null;
+    }
+
+    public synchronized ObjectName getObjectName() {
+        return name;
+    }
+
+    /**
+     * A line was opened with the given buffer size in bytes.
+     */
+    public void lineOpened(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Publishes the queue a low latency playback settles on; null for a line of fixed size.
+     */
+    public void tuned(LatencyTuner tuner) {
+        this.tuner = tuner;
+    }
+
+    /**
+     * Records the line buffer fill in bytes seen before a transfer.
+     */
+    public void bufferFill(int fill) {
+        int high;
+        while (fill > (high = fillHighWater.get()) && !fillHighWater.compareAndSet(high, fill)) {
+            // retry
+        }
+        int low;
+        while (fill < (low = fillLowWater.get()) && !fillLowWater.compareAndSet(low, fill)) {
+            // retry
+        }
+    }
+
+    /**
+     * Records one chunk moved to or from the line.
+     */
+    public void chunk(int length, long nanos) {
+        bytes.addAndGet(length);
+        chunks.incrementAndGet();
+        chunkLatency.record(nanos);
+    }
+
+    public void conversion(long nanos) {
+        conversion.record(nanos);
+    }
+
+    public void overrun() {
+        overruns.incrementAndGet();
+    }
+
+    public void underrun() {
+        underruns.incrementAndGet();
+    }
+
+    public void starvation() {
+        starvations.incrementAndGet();
+    }
+
+    public LatencyHistogram getChunkLatency() {
+        return chunkLatency;
+    }
+
+    public LatencyHistogram getConversion() {
+        return conversion;
+    }
+
+    public long getBytesProcessed() {
+        return bytes.get();
+    }
+
+    public long getChunks() {
+        return chunks.get();
+    }
+
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    public long getUnderruns() {
+        return underruns.get();
+    }
+
+    public long getStarvations() {
+        return starvations.get();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBufferFillHighWater() {
+        return fillHighWater.get();
+    }
+
+    /**
+     * @return the lowest fill seen, or -1 if none was recorded yet
+     */
+    public int getBufferFillLowWater() {
+        int low = fillLowWater.get();
+        return low == Integer.MAX_VALUE ? -1 : low;
+    }
+
+    public long getChunkLatencyMeanMicros() {
+        return chunkLatency.getMeanNanos() / 1000;
+    }
+
+    public long getChunkLatencyP50Micros() {
+        return chunkLatency.getPercentileNanos(0.5) / 1000;
+    }
+
+    public long getChunkLatencyP99Micros() {
+        return chunkLatency.getPercentileNanos(0.99) / 1000;
+    }
+
+    public long getChunkLatencyMaxMicros() {
+        return chunkLatency.getMaxNanos() / 1000;
+    }
+
+    public long[] getChunkLatencyHistogram() {
+        return chunkLatency.getCounts();
+    }
+
+    public long getConversionTimeMillis() {
+        return conversion.getTotalNanos() / 1_000_000;
+    }
+
+    public long getConversionMeanMicros() {
+        return conversion.getMeanNanos() / 1000;
+    }
+
+    public long getConversionMaxMicros() {
+        return conversion.getMaxNanos() / 1000;
+    }
+
+    public int getTunedQueueBytes() {
+        LatencyTuner tuner = this.tuner;
+        return tuner != null ? tuner.getQueueBytes() : 0;
+    }
+
+    public long getTunedQueueMicros() {
+        LatencyTuner tuner = this.tuner;
+        return tuner != null ? Math.round(tuner.getQueueMillis() * 1000) : 0;
+    }
+
+    public void reset() {
+        bytes.set(0);
+        chunks.set(0);
+        overruns.set(0);
+        underruns.set(0);
+        starvations.set(0);
+        fillHighWater.set(0);
+        fillLowWater.set(Integer.MAX_VALUE);
+        chunkLatency.reset();
+        conversion.reset();
+    }
+}
@@ -0,0 +1,48 @@
+package jaudio;
+
+/**
+ * JMX view of {@link StreamMetrics}. Durations are reported in microseconds, buffer levels in bytes.
+ */
+public interface StreamMetricsMBean {
+
+    long getBytesProcessed();
+
+    long getChunks();
+
+    long getOverruns();
+
+    long getUnderruns();
+
+    long getStarvations();
+
+    int getBufferSize();
+
+    int getBufferFillHighWater();
+
+    int getBufferFillLowWater();
+
+    long getChunkLatencyMeanMicros();
+
+    long getChunkLatencyP50Micros();
+
+    long getChunkLatencyP99Micros();
+
+    long getChunkLatencyMaxMicros();
+
+    long[] getChunkLatencyHistogram();
+
+    long getConversionTimeMillis();
+
+    long getConversionMeanMicros();
+
+    long getConversionMaxMicros();
+
+    /**
+     * @return bytes queued in the line by a tuned low latency playback, 0 for a line of fixed size
+     */
+    int getTunedQueueBytes();
+
+    long getTunedQueueMicros();
+
+    void reset();
+}
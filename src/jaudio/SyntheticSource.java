@@ -0,0 +1,177 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import java.util.Random;
+
+/**
+ * A generated capture source: a sine tone plus optional white noise, paced like a line.
+ * <p>
+ * Frames accumulate at the paced rate in a buffer of the given size; frames not read in time are dropped
+ * and counted as an overrun, the same way a real line loses data when capture falls behind. A frame length
+ * makes the source finite, after which read returns -1. Any integer or float PCM format can be generated.
+ */
+public class SyntheticSource extends PacedEndpoint implements AudioSource {
+
+    private final int channels;
+    private final int bytesPerSample;
+    private final boolean isFloat;
+    private final boolean unsigned;
+    private final boolean bigEndian;
+    private final long fullScale;
+    private final double step;
+    private final float amplitude;
+    private final Random random = new Random(1);
+    private float noise;
+    private long frameLength = AudioSystem.NOT_SPECIFIED;
+    private double phase;
+    private long consumed;
+    private long dropped;
+    private long overruns;
+
+    /**
+     * @param bufferSize buffer in bytes, frames beyond it are dropped if the reader falls behind
+     * @param frequency  tone frequency in Hz
+     * @param amplitude  tone amplitude, 1 for full scale
+     */
+    public SyntheticSource(AudioFormat format, int bufferSize, double frequency, float amplitude) {
+        super(format, bufferSize);
+        this.channels = format.getChannels();
+        this.bytesPerSample = format.getSampleSizeInBits() / 8;
+        this.isFloat = AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding());
+        this.unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding());
+        this.bigEndian = format.isBigEndian();
+        this.fullScale = (1L << (format.getSampleSizeInBits() - 1)) - 1;
+        this.step = 2 * Math.PI * frequency / format.getFrameRate();
+        this.amplitude = amplitude;
+    }
+
+    /**
+     * A 440 Hz tone at half scale with a half second buffer.
+     */
+    public SyntheticSource(AudioFormat format) {
+        this(format, (int) (format.getFrameRate() / 2) * format.getFrameSize(), 440, 0.5f);
+    }
+
+    /**
+     * @param noise white noise amplitude, 1 for full scale
+     */
+    public void setNoise(float noise) {
+        this.noise = noise;
+    }
+
+    /**
+     * @param frameLength frames after which the source ends, or AudioSystem.NOT_SPECIFIED for an endless source
+     */
+    public void setFrameLength(long frameLength) {
+        this.frameLength = frameLength;
+    }
+
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    public synchronized long getDroppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * @return how often frames had to be dropped because the reader fell behind
+     */
+    public synchronized long getOverruns() {
+        return overruns;
+    }
+
+    public long getLongFramePosition() {
+        return isPaced() ? Math.min(clockFrames(), end()) : consumedFrames();
+    }
+
+    private synchronized long consumedFrames() {
+        return consumed;
+    }
+
+    private long end() {
+        return frameLength == AudioSystem.NOT_SPECIFIED ? Long.MAX_VALUE : frameLength;
+    }
+
+    /**
+     * Frames ready to read, dropping the oldest once more than a buffer full is waiting.
+     */
+    private synchronized long availableFrames() {
+        long bufferFrames = bufferSize / frameSize;
+        if (!isPaced()) {
+            return Math.min(bufferFrames, end() - consumed);
+        }
+        long pending = Math.min(clockFrames(), end()) - consumed;
+        if (pending > bufferFrames) {
+            long lost = pending - bufferFrames;
+            dropped += lost;
+            consumed += lost;
+            overruns++;
+            phase = (phase + step * lost) % (2 * Math.PI);
+            pending = bufferFrames;
+        }
+        return pending;
+    }
+
+    public int available() {
+        return (int) availableFrames() * frameSize;
+    }
+
+    public int read(byte[] b, int offset, int length) {
+        long wanted = length / frameSize;
+        long total = 0;
+        // like a line, a read blocks until all of it has been captured, even if that is more than a buffer
+        while (total < wanted) {
+            long ready = Math.min(availableFrames(), wanted - total);
+            if (ready > 0) {
+                synchronized (this) {
+                    generate(b, offset + (int) total * frameSize, (int) ready);
+                    consumed += ready;
+                }
+                total += ready;
+            } else if (consumedFrames() >= end() || !isRunning() || !isOpen()) {
+                break;
+            } else {
+                waitFrames(wanted - total);
+            }
+        }
+        if (total == 0) {
+            if (consumedFrames() >= end()) {
+                return -1;
+            }
+            // stopped: do not let a read loop spin
+            waitFrames(1);
+        }
+        return (int) total * frameSize;
+    }
+
+    private void generate(byte[] b, int offset, int frames) {
+        int p = offset;
+        for (int f = 0; f < frames; f++) {
+            double v = amplitude * Math.sin(phase);
+            phase += step;
+            if (phase > 2 * Math.PI) {
+                phase -= 2 * Math.PI;
+            }
+            for (int c = 0; c < channels; c++) {
+                double s = noise > 0 ? v + noise * (2 * random.nextDouble() - 1) : v;
+                p = encode(Math.max(-1, Math.min(1, s)), b, p);
+            }
+        }
+    }
+
+    private int encode(double s, byte[] b, int p) {
+        long bits;
+        if (isFloat) {
+            bits = bytesPerSample == 8 ? Double.doubleToRawLongBits(s) : Float.floatToRawIntBits((float) s);
+        } else {
+            bits = Math.round(s * fullScale) + (unsigned ? fullScale + 1 : 0);
+        }
+        for (int i = 0; i < bytesPerSample; i++) {
+            int shift = 8 * (bigEndian ? bytesPerSample - 1 - i : i);
+            b[p++] = (byte) (bits >> shift);
+        }
+        return p;
+    }
+}
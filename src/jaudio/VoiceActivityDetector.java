@@ -0,0 +1,278 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Arrays;
+
+/**
+ * Streaming voice activity detection by short-time energy and zero-crossing rate, with hangover and pre-roll.
+ * <p>
+ * Decoded samples are cut into analysis frames of {@link #getFrameMillis()} ms. A frame is voiced when its RMS
+ * level is above the threshold, or unvoiced speech (fricatives) when it is within 10 dB of the threshold and
+ * crosses zero often. A segment opens on the first speech frame and closes once no speech frame was seen for
+ * the hangover time; boundaries are kept as frame positions of the input.
+ * <p>
+ * With trimming, {@link #process} passes on only the bytes inside segments plus up to the pre-roll time of
+ * silence before each onset, so a long pause shrinks to pre-roll plus hangover. Silence waits in a ring of
+ * the pre-roll length, which together with every other buffer is allocated up front; the per chunk path
+ * allocates nothing.
+ */
+public class VoiceActivityDetector {
+
+    /**
+     * Receives segment boundaries, in input frames, as they are decided.
+     */
+    public interface SegmentListener {
+        void segment(long startFrame, long endFrame);
+    }
+
+    private final int channels;
+    private final int frameSize;
+    private final int frameMillis;
+    private final int analysisFrames;
+    private float thresholdDb = -45f;
+    private float zeroCrossingRate = 0.25f;
+    private final int hangoverFrames;
+    private SegmentListener listener;
+
+    // current analysis frame
+    private double sumSquares;
+    private int crossings;
+    private int count;
+    private boolean lastPositive;
+
+    // decision state, in input frames
+    private long framesIn;
+    private long lastSpeech = -1;
+    private long segmentStart = -1;
+    private long[] segments = new long[64];
+    private int segmentCount;
+
+    // bytes waiting for a decision: the pending analysis frame plus the pre-roll
+    private final byte[] ring;
+    private int ringStart;
+    private int ringCount;
+    private long bytesOut;
+
+    public VoiceActivityDetector(AudioFormat format, int frameMillis, int hangoverMillis, int preRollMillis) {
+        this.channels = format.getChannels();
+        this.frameSize = format.getFrameSize();
+        this.frameMillis = frameMillis;
+        this.analysisFrames = Math.max(1, (int) (format.getFrameRate() * frameMillis / 1000));
+        this.hangoverFrames = (int) (format.getFrameRate() * hangoverMillis / 1000);
+        int preRollBytes = (int) (format.getFrameRate() * preRollMillis / 1000) * frameSize;
+        ring = new byte[preRollBytes + analysisFrames * frameSize];
+    }
+
+    /**
+     * 10 ms analysis frames, 300 ms hangover, 100 ms pre-roll.
+     */
+    public VoiceActivityDetector(AudioFormat format) {
+        this(format, 10, 300, 100);
+    }
+
+    public int getFrameMillis() {
+        return frameMillis;
+    }
+
+    public float getThresholdDb() {
+        return thresholdDb;
+    }
+
+    /**
+     * Sets the RMS level in dBFS above which a frame counts as speech.
+     */
+    public void setThresholdDb(float thresholdDb) {
+        this.thresholdDb = thresholdDb;
+    }
+
+    public float getZeroCrossingRate() {
+        return zeroCrossingRate;
+    }
+
+    /**
+     * Sets the crossings per sample above which a quieter frame still counts as (unvoiced) speech.
+     */
+    public void setZeroCrossingRate(float zeroCrossingRate) {
+        this.zeroCrossingRate = zeroCrossingRate;
+    }
+
+    public void setSegmentListener(SegmentListener listener) {
+        this.listener = listener;
+    }
+
+    public boolean isActive() {
+        return segmentStart >= 0;
+    }
+
+    /**
+     * @return number of bytes passed on by {@link #process} so far
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return the size of an out buffer large enough for {@link #process} of a chunk of the given length
+     */
+    public int getOutputCapacity(int length) {
+        return length + ring.length;
+    }
+
+    /**
+     * @return closed segments as start and end input frames, two entries per segment
+     */
+    public long[] getSegments() {
+        return Arrays.copyOf(segments, segmentCount * 2);
+    }
+
+    /**
+     * @return closed segments as start and end frames of the trimmed output, where they follow each other
+     */
+    public long[] getTrimmedSegments() {
+        long[] trimmed = new long[segmentCount * 2];
+        long position = 0;
+        for (int i = 0; i < trimmed.length; i += 2) {
+            trimmed[i] = position;
+            position += segments[i + 1] - segments[i];
+            trimmed[i + 1] = position;
+        }
+        return trimmed;
+    }
+
+    /**
+     * Classifies a chunk without trimming.
+     *
+     * @param samples interleaved samples normalized to [-1, 1]
+     */
+    public void analyze(float[] samples, int offset, int frames) {
+        process(null, 0, samples, offset, frames, null, 0);
+    }
+
+    /**
+     * Classifies a chunk and copies the bytes to keep into out.
+     *
+     * @param data    the raw chunk, frames whole frames from dataOffset
+     * @param samples the same chunk decoded and normalized
+     * @param out     receives the kept bytes, needs room for the chunk plus the pre-roll and one analysis frame
+     * @return the number of bytes written to out
+     */
+    public int process(byte[] data, int dataOffset, float[] samples, int offset, int frames, byte[] out, int outOffset) {
+        int written = 0;
+        int idx = offset;
+        int frameStart = 0;
+        for (int f = 0; f < frames; f++) {
+            float s = 0;
+            for (int c = 0; c < channels; c++) {
+                s += samples[idx++];
+            }
+            s /= channels;
+            sumSquares += s * s;
+            boolean positive = s >= 0;
+            if (positive != lastPositive) {
+                crossings++;
+                lastPositive = positive;
+            }
+            if (++count == analysisFrames) {
+                if (data != null) {
+                    hold(data, dataOffset + frameStart * frameSize, (f + 1 - frameStart) * frameSize);
+                    frameStart = f + 1;
+                }
+                framesIn += count;
+                decide();
+                if (out != null && isActive()) {
+                    written += release(out, outOffset + written);
+                }
+                sumSquares = 0;
+                crossings = 0;
+                count = 0;
+            }
+        }
+        if (data != null && frameStart < frames) {
+            hold(data, dataOffset + frameStart * frameSize, (frames - frameStart) * frameSize);
+        }
+        return written;
+    }
+
+    /**
+     * Ends the stream: closes an open segment and releases the bytes still waiting if it was active.
+     *
+     * @return the number of bytes written to out
+     */
+    public int finish(byte[] out, int outOffset) {
+        framesIn += count;
+        count = 0;
+        int written = 0;
+        if (isActive()) {
+            if (out != null) {
+                written = release(out, outOffset);
+            }
+            close(framesIn);
+        }
+        ringCount = 0;
+        return written;
+    }
+
+    private void decide() {
+        double rms = Math.sqrt(sumSquares / count);
+        double db = 20 * Math.log10(rms + 1e-9);
+        float zcr = crossings / (float) count;
+        boolean speech = db > thresholdDb || (db > thresholdDb - 10 && zcr > zeroCrossingRate);
+        long frameStart = framesIn - count;
+        if (speech) {
+            lastSpeech = framesIn;
+            if (segmentStart < 0) {
+                // the held pre-roll is part of the segment
+                segmentStart = frameStart - Math.max(0, ringCount / frameSize - count);
+            }
+        } else if (segmentStart >= 0 && frameStart - lastSpeech >= hangoverFrames) {
+            // this frame stays out, the segment ends where it starts
+            close(frameStart);
+        }
+    }
+
+    private void close(long end) {
+        if (segmentCount * 2 == segments.length) {
+            segments = Arrays.copyOf(segments, segments.length * 2);
+        }
+        segments[segmentCount * 2] = segmentStart;
+        segments[segmentCount * 2 + 1] = end;
+        segmentCount++;
+        if (listener != null) {
+            listener.segment(segmentStart, end);
+        }
+        segmentStart = -1;
+    }
+
+    /**
+     * Appends to the ring, dropping the oldest bytes once it holds more than the pre-roll and one analysis frame.
+     */
+    private void hold(byte[] src, int offset, int length) {
+        int p = 0;
+        while (p < length) {
+            int n;
+            if (ringCount == ring.length) {
+                // full: overwrite the oldest bytes
+                n = Math.min(length - p, ring.length - ringStart);
+                System.arraycopy(src, offset + p, ring, ringStart, n);
+                ringStart = (ringStart + n) % ring.length;
+            } else {
+                int end = (ringStart + ringCount) % ring.length;
+                n = Math.min(length - p, Math.min(ring.length - ringCount, ring.length - end));
+                System.arraycopy(src, offset + p, ring, end, n);
+                ringCount += n;
+            }
+            p += n;
+        }
+    }
+
+    private int release(byte[] out, int offset) {
+        int n = ringCount;
+        int first = Math.min(n, ring.length - ringStart);
+        System.arraycopy(ring, ringStart, out, offset, first);
+        System.arraycopy(ring, 0, out, offset + first, n - first);
+        ringStart = 0;
+        ringCount = 0;
+        bytesOut += n;
+        return n;
+    }
+}
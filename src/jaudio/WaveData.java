@@ -13,8 +13,7 @@ import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 
 /**
  * saving and extracting PCM data from wavefile byteArray
@@ -27,6 +26,7 @@ public class WaveData {
     private float[] audioData;
     private AudioFormat format;
     private double durationSec;
+    private PcmDecoder decoder;
 
     public WaveData() {
     }
@@ -48,12 +48,28 @@ public class WaveData {
     }
 
     public float[] extractAmplitudeFromFile(File wavFile) throws Exception {
-        // create file input stream
-        FileInputStream fis = new FileInputStream(wavFile);
-        // create bytearray from file
-        byte[] arrFile = new byte[(int) wavFile.length()];
-        fis.read(arrFile);
-        return extractAmplitudeFromFileByteArray(arrFile);
+        MappedWaveReader reader;
+        try {
+            reader = new MappedWaveReader(wavFile);
+        } catch (IOException ex) {
+            // not a plain PCM wave file, let the codec or the audio system decode it
+            try (AudioInputStream audioInputStream = LosslessCodec.getAudioInputStream(wavFile)) {
+                return extractFloatDataFromAudioInputStream(audioInputStream);
+            }
+        }
+        try {
+            format = reader.getFormat();
+            durationSec = reader.getDurationSec();
+            long length = reader.getFrameLength() * format.getFrameSize();
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Too large to load at once, use MappedWaveReader: " + wavFile);
+            }
+            audioBytes = new byte[(int) length];
+            reader.readBytes(0, (int) reader.getFrameLength(), audioBytes, 0);
+            return extractFloatDataFromAmplitudeByteArray(format, audioBytes);
+        } finally {
+            reader.close();
+        }
     }
 
     public float[] extractAmplitudeFromFileByteArray(byte[] arrFile) throws Exception {
@@ -81,52 +97,68 @@ public class WaveData {
         float milliseconds = (long) ((audioInputStream.getFrameLength() * 1000) / audioInputStream.getFormat().getFrameRate());
         durationSec = milliseconds / 1000.0;
         // System.out.println("The current signal has duration "+durationSec+" Sec");
-        audioInputStream.read(audioBytes);
+        int offset = 0;
+        int numBytesRead;
+        while (offset < audioBytes.length && (numBytesRead = audioInputStream.read(audioBytes, offset, audioBytes.length - offset)) != -1) {
+            offset += numBytesRead;
+        }
         return extractFloatDataFromAmplitudeByteArray(format, audioBytes);
     }
 
+    /**
+     * Decodes a take kept in memory segment by segment, without copying its bytes first; getAudioBytes() is then null.
+     */
+    public float[] extractFloatDataFromAudioStore(AudioStore store) {
+        format = store.getFormat();
+        durationSec = store.getFrameLength() / format.getFrameRate();
+        audioBytes = null;
+        long length = store.getFrameLength() * format.getFrameSize();
+        int bytesPerSample = format.getSampleSizeInBits() / 8;
+        audioData = new float[(int) (length / bytesPerSample)];
+        PcmDecoder decoder = decoder(format, false);
+        byte[][] segments = store.segments();
+        int segmentBytes = store.getSegmentBytes();
+        for (int i = 0; (long) i * segmentBytes < length; i++) {
+            long start = (long) i * segmentBytes;
+            decoder.decode(segments[i], 0, (int) Math.min(segmentBytes, length - start), audioData, (int) (start / bytesPerSample));
+        }
+        return audioData;
+    }
+
     public float[] extractFloatDataFromAmplitudeByteArray(AudioFormat format, byte[] audioBytes) {
         // convert
-        audioData = null;
-        if (format.getSampleSizeInBits() == 16) {
-            int nlengthInSamples = audioBytes.length / 2;
-            audioData = new float[nlengthInSamples];
-            if (format.isBigEndian()) {
-                for (int i = 0; i < nlengthInSamples; i++) {
-                    /* First byte is MSB (high order) */
-                    int MSB = audioBytes[2 * i];
-                    /* Second byte is LSB (low order) */
-                    int LSB = audioBytes[2 * i + 1];
-                    audioData[i] = MSB << 8 | (255 & LSB);
-                }
-            } else {
-                for (int i = 0; i < nlengthInSamples; i++) {
-                    /* First byte is LSB (low order) */
-                    int LSB = audioBytes[2 * i];
-                    /* Second byte is MSB (high order) */
-                    int MSB = audioBytes[2 * i + 1];
-                    audioData[i] = MSB << 8 | (255 & LSB);
-                }
-            }
-        } else if (format.getSampleSizeInBits() == 8) {
-            int nlengthInSamples = audioBytes.length;
-            audioData = new float[nlengthInSamples];
-            if (format.getEncoding().toString().startsWith("PCM_SIGN")) {
-                for (int i = 0; i < audioBytes.length; i++) {
-                    audioData[i] = audioBytes[i];
-                }
-            } else {
-                for (int i = 0; i < audioBytes.length; i++) {
-                    audioData[i] = audioBytes[i] - 128;
-                }
-            }
-        } // end of if..else
-
+        audioData = new float[audioBytes.length / (format.getSampleSizeInBits() / 8)];
+        extractFloatDataFromAmplitudeByteArray(format, audioBytes, 0, audioBytes.length, audioData, 0, false);
         return audioData;
     }
 
     /**
-     * Save to file.
+     * Decodes PCM bytes into a caller supplied buffer. Supports 8/16/24/32 bit integer and 32 bit float PCM in either byte
+     * order.
+     *
+     * @param normalize scale samples to [-1, 1] instead of keeping their integer range
+     * @return the number of samples written to dst
+     */
+    public int extractFloatDataFromAmplitudeByteArray(AudioFormat format, byte[] audioBytes, int offset, int length, float[] dst, int dstOffset,
+                                                      boolean normalize) {
+        return decoder(format, normalize).decode(audioBytes, offset, length, dst, dstOffset);
+    }
+
+    /**
+     * @return the decoder of the last call if it fits, so decoding chunk after chunk does not create one each time
+     */
+    private PcmDecoder decoder(AudioFormat format, boolean normalize) {
+        PcmDecoder decoder = this.decoder;
+        if (decoder == null || decoder.isNormalized() != normalize || !decoder.getFormat().matches(format)) {
+            decoder = new PcmDecoder(format, normalize);
+            this.decoder = decoder;
+        }
+        return decoder;
+    }
+
+    /**
+     * Save to file. {@link LosslessCodec#JLA} writes the compressed block format, any other type goes through AudioSystem.
+     * The file name is made unique atomically, see {@link SaveTask}; use a SaveTask directly to save in the background.
      *
      * @param name     the name
      * @param fileType the file type
@@ -138,16 +170,7 @@ public class WaveData {
         if (audioInputStream == null) {
             return;
         }
-        // reset to the beginnning of the captured data
-        audioInputStream.reset();
-        File myFile = new File(name + ".wav");
-        int i = 0;
-        while (myFile.exists()) {
-            String temp = String.format(name + "%d", i++);
-            myFile = new File(temp + ".wav");
-        }
-        AudioSystem.write(audioInputStream, fileType, myFile);
-
+        File myFile = SaveTask.forStream(name, fileType, audioInputStream).save();
         System.out.println("Saved " + myFile.getAbsolutePath());
     }
 
@@ -0,0 +1,305 @@
+package jaudio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams PCM chunks straight to a WAV file through a FileChannel.
+ * <p>
+ * A placeholder header is written up front and patched about once a second
+ * while capturing and again on close, so a crash mid-take leaves a playable
+ * file that {@link #recover(File)} can fix up to its exact length.
+ * <p>
+ * WAV stores 8 bit samples unsigned and wider ones signed little-endian.
+ * Samples in any other integer layout are converted on the way out, see
+ * {@link #isWaveLayout(AudioFormat)}. Regions of the take, such as detected
+ * voice segments, go after the data chunk on close as labelled cue points.
+ */
+public class WaveFileWriter implements Closeable {
+
+    static final int HEADER_SIZE = 44;
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+    private static final long[] NO_REGIONS = new long[0];
+
+    private final FileChannel channel;
+    private final AudioFormat format;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final long patchInterval;
+    private final boolean convert;
+    private byte[] converted = new byte[0];
+    private long[] regions = NO_REGIONS;
+    private long dataBytes;
+    private long lastPatched;
+
+    public WaveFileWriter(File file, AudioFormat format) throws IOException {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding) && !AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)
+                && !AudioFormat.Encoding.PCM_FLOAT.equals(encoding) || format.getSampleSizeInBits() % 8 != 0) {
+            throw new IllegalArgumentException("WAV requires PCM samples of whole bytes: " + format);
+        }
+        this.format = format;
+        this.convert = !isWaveLayout(format);
+        this.patchInterval = Math.max(1, (long) format.getFrameRate() * format.getFrameSize());
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        // unknown length until the first patch, readers just stream to EOF
+        putHeader(header, format, MAX_RIFF_SIZE - 36);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * Sets regions of the take as start and end frame pairs, written on close, see {@link #regionChunks}.
+     */
+    public void setRegions(long[] regions) {
+        this.regions = regions == null ? NO_REGIONS : regions;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (convert) {
+            toWave(data, offset, length);
+            append(ByteBuffer.wrap(converted, 0, length));
+        } else {
+            append(ByteBuffer.wrap(data, offset, length));
+        }
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        if (convert) {
+            byte[] data = new byte[src.remaining()];
+            src.get(data);
+            write(data, 0, data.length);
+        } else {
+            append(src);
+        }
+    }
+
+    private void append(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        dataBytes += length;
+        if (dataBytes - lastPatched >= patchInterval) {
+            patchHeader();
+        }
+    }
+
+    /**
+     * @return whether samples in the given format are stored in a WAV data chunk as they are: 8 bit unsigned,
+     * wider signed or float little-endian
+     */
+    public static boolean isWaveLayout(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        if (bits == 8) {
+            return AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding);
+        }
+        return bits > 8 && !format.isBigEndian()
+                && (AudioFormat.Encoding.PCM_SIGNED.equals(encoding) || AudioFormat.Encoding.PCM_FLOAT.equals(encoding));
+    }
+
+    /**
+     * Copies samples into the converted buffer in WAV layout.
+     */
+    private void toWave(byte[] data, int offset, int length) {
+        if (converted.length < length) {
+            converted = new byte[length];
+        }
+        System.arraycopy(data, offset, converted, 0, length);
+        toWaveLayout(format, converted, 0, length);
+    }
+
+    /**
+     * Converts whole integer samples in place to WAV layout: little-endian, signed unless 8 bit.
+     */
+    static void toWaveLayout(AudioFormat format, byte[] data, int offset, int length) {
+        int bytes = format.getSampleSizeInBits() / 8;
+        boolean swap = bytes > 1 && format.isBigEndian();
+        boolean signed = !AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding());
+        // the sign bit is in the most significant byte, last after the swap
+        boolean flip = !AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) && signed == (bytes == 1);
+        int end = offset + length / bytes * bytes;
+        for (int i = offset; i < end; i += bytes) {
+            if (swap) {
+                for (int lo = i, hi = i + bytes - 1; lo < hi; lo++, hi--) {
+                    byte b = data[lo];
+                    data[lo] = data[hi];
+                    data[hi] = b;
+                }
+            }
+            if (flip) {
+                data[i + bytes - 1] ^= (byte) 0x80;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the size fields for everything written so far.
+     */
+    public void patchHeader() throws IOException {
+        putHeader(header, format, dataBytes);
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        lastPatched = dataBytes;
+    }
+
+    public void close() throws IOException {
+        try {
+            patchHeader();
+            if (regions.length > 0) {
+                appendChunks(channel, regionChunks(regions));
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Fills buf with a canonical 44 byte WAV header and flips it for writing.
+     *
+     * @param buf       a little-endian buffer with at least 44 bytes remaining
+     * @param format    PCM format of the data chunk
+     * @param dataBytes length of the data chunk, clamped to the 4 GB RIFF limit
+     */
+    static void putHeader(ByteBuffer buf, AudioFormat format, long dataBytes) {
+        long dataSize = Math.min(dataBytes, MAX_RIFF_SIZE - 36);
+        boolean isFloat = AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding());
+        int channels = format.getChannels();
+        int bits = format.getSampleSizeInBits();
+        int blockAlign = format.getFrameSize();
+        int rate = (int) format.getSampleRate();
+        buf.clear();
+        buf.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        buf.putInt((int) (dataSize + 36));
+        buf.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        buf.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        buf.putInt(16);
+        buf.putShort((short) (isFloat ? 3 : 1));
+        buf.putShort((short) channels);
+        buf.putInt(rate);
+        buf.putInt(rate * blockAlign);
+        buf.putShort((short) blockAlign);
+        buf.putShort((short) bits);
+        buf.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        buf.putInt((int) dataSize);
+        buf.flip();
+    }
+
+    /**
+     * Builds the chunks that mark regions of a take: a cue chunk with a point at the start of every region, and a
+     * LIST adtl chunk with the length of each (ltxt, purpose "rgn ") and a label "Region n" (labl).
+     *
+     * @param regions start and end frame pairs
+     * @return the chunks, flipped for writing
+     */
+    static ByteBuffer regionChunks(long[] regions) {
+        int count = regions.length / 2;
+        byte[][] labels = new byte[count][];
+        int adtl = 4;
+        for (int i = 0; i < count; i++) {
+            labels[i] = ("Region " + (i + 1) + "\0").getBytes(StandardCharsets.US_ASCII);
+            adtl += 8 + 20 + 8 + 4 + labels[i].length + (labels[i].length & 1);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(8 + 4 + 24 * count + 8 + adtl).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put((byte) 'c').put((byte) 'u').put((byte) 'e').put((byte) ' ');
+        buf.putInt(4 + 24 * count).putInt(count);
+        for (int i = 0; i < count; i++) {
+            int start = (int) Math.min(MAX_RIFF_SIZE, regions[2 * i]);
+            buf.putInt(i + 1).putInt(start);
+            buf.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+            buf.putInt(0).putInt(0).putInt(start);
+        }
+        buf.put((byte) 'L').put((byte) 'I').put((byte) 'S').put((byte) 'T');
+        buf.putInt(adtl);
+        buf.put((byte) 'a').put((byte) 'd').put((byte) 't').put((byte) 'l');
+        for (int i = 0; i < count; i++) {
+            buf.put((byte) 'l').put((byte) 't').put((byte) 'x').put((byte) 't');
+            buf.putInt(20).putInt(i + 1).putInt((int) Math.min(MAX_RIFF_SIZE, regions[2 * i + 1] - regions[2 * i]));
+            buf.put((byte) 'r').put((byte) 'g').put((byte) 'n').put((byte) ' ');
+            buf.putLong(0); // country, language, dialect, code page
+            buf.put((byte) 'l').put((byte) 'a').put((byte) 'b').put((byte) 'l');
+            buf.putInt(4 + labels[i].length).putInt(i + 1).put(labels[i]);
+            if ((labels[i].length & 1) != 0) {
+                buf.put((byte) 0);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Appends chunks at the end of a WAV file, after a pad byte if the file has odd length, and grows the RIFF size
+     * to match. Files at the 4 GB RIFF limit are left as they are.
+     */
+    static void appendChunks(FileChannel channel, ByteBuffer chunks) throws IOException {
+        long end = channel.size();
+        if (end + 1 + chunks.remaining() - 8 > MAX_RIFF_SIZE) {
+            return;
+        }
+        if ((end & 1) != 0) {
+            ByteBuffer pad = ByteBuffer.allocate(1);
+            while (pad.hasRemaining()) {
+                channel.write(pad, end);
+            }
+            end++;
+        }
+        long position = end;
+        while (chunks.hasRemaining()) {
+            position += channel.write(chunks, position);
+        }
+        ByteBuffer riff = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, (int) (position - 8));
+        while (riff.hasRemaining()) {
+            channel.write(riff, 4 + riff.position());
+        }
+    }
+
+    /**
+     * Fixes the size fields of a WAV file left behind by an interrupted capture.
+     *
+     * @param wavFile file written by this class
+     * @return the recovered data chunk length in bytes
+     */
+    public static long recover(File wavFile) throws IOException {
+        try (FileChannel ch = FileChannel.open(wavFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (buf.hasRemaining() && ch.read(buf) != -1) {
+                // fill the header buffer
+            }
+            if (buf.position() < HEADER_SIZE || buf.getInt(0) != 0x46464952 || buf.getInt(8) != 0x45564157
+                    || buf.getInt(36) != 0x61746164) {
+                throw new IOException("Not a streamed WAV capture: " + wavFile);
+            }
+            int blockAlign = Math.max(1, buf.getShort(32));
+            long dataBytes = (ch.size() - HEADER_SIZE) / blockAlign * blockAlign;
+            long dataSize = Math.min(dataBytes, MAX_RIFF_SIZE - 36);
+            buf.putInt(4, (int) (dataSize + 36));
+            buf.putInt(40, (int) dataSize);
+            buf.clear();
+            long position = 0;
+            while (buf.hasRemaining()) {
+                position += ch.write(buf, position);
+            }
+            ch.truncate(HEADER_SIZE + dataBytes);
+            return dataBytes;
+        }
+    }
+}